@@ -81,8 +81,11 @@ import com.hughes.android.dictionary.engine.Language.LanguageResources;
 import com.hughes.android.dictionary.engine.PairEntry;
 import com.hughes.android.dictionary.engine.PairEntry.Pair;
 import com.hughes.android.dictionary.engine.RowBase;
+import com.hughes.android.dictionary.engine.RowMatchType;
+import com.hughes.android.dictionary.engine.SearchContext;
 import com.hughes.android.dictionary.engine.TokenRow;
 import com.hughes.android.dictionary.engine.TransliteratorManager;
+import com.hughes.android.util.ByteSource;
 import com.hughes.android.util.IntentLauncher;
 import com.hughes.android.util.NonLinkClickableSpan;
 import com.hughes.util.StringUtil;
@@ -91,8 +94,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -103,6 +106,7 @@ import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -116,7 +120,8 @@ public class DictionaryActivity extends SherlockListActivity {
     DictionaryApplication application;
 
     File dictFile = null;
-    RandomAccessFile dictRaf = null;
+    // What dictionary reads from when the file couldn't be mapped.
+    ByteSource.Channel dictChannel = null;
 
     Dictionary dictionary = null;
 
@@ -135,8 +140,20 @@ public class DictionaryActivity extends SherlockListActivity {
         }
     });
 
+    // Where multi-word searches match rows in parallel.
+    private final ExecutorService searchScanExecutor = Executors.newFixedThreadPool(Runtime
+            .getRuntime().availableProcessors(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "searchScanExecutor");
+        }
+    });
+
     private SearchOperation currentSearchOperation = null;
 
+    // Lets single-word searches reuse the last one's work while typing.
+    private Index.SearchSession searchSession = null;
+
     TextToSpeech textToSpeech;
     volatile boolean ttsReady;
 
@@ -322,18 +339,21 @@ public class DictionaryActivity extends SherlockListActivity {
         try {
             final String name = application.getDictionaryName(dictFile.getName());
             this.setTitle("QuickDic: " + name);
-            dictRaf = new RandomAccessFile(dictFile, "r");
-            dictionary = new Dictionary(dictRaf);
+            try {
+                // Reads from a mapping don't need a system call, but a big
+                // dictionary may not fit in the address space.
+                dictionary = new Dictionary(Dictionary.map(dictFile));
+            } catch (IOException e) {
+                Log.w(LOG, "Unable to map dictionary, reading the file instead.", e);
+                // Unlike a plain FileChannel, this one gets reopened if
+                // interrupting a search closes it.
+                dictChannel = new ByteSource.Channel(dictFile);
+                dictionary = new Dictionary(dictChannel);
+            }
         } catch (Exception e) {
             Log.e(LOG, "Unable to load dictionary.", e);
-            if (dictRaf != null) {
-                try {
-                    dictRaf.close();
-                } catch (IOException e1) {
-                    Log.e(LOG, "Unable to close dictRaf.", e1);
-                }
-                dictRaf = null;
-            }
+            dictionary = null;
+            closeDictChannel();
             Toast.makeText(this, getString(R.string.invalidDictionary, "", e.getMessage()),
                     Toast.LENGTH_LONG).show();
             startActivity(DictionaryManagerActivity.getLaunchIntent());
@@ -569,27 +589,37 @@ public class DictionaryActivity extends SherlockListActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (dictRaf == null) {
+        searchScanExecutor.shutdown();
+        if (dictionary == null) {
             return;
         }
 
         final SearchOperation searchOperation = currentSearchOperation;
         currentSearchOperation = null;
 
-        // Before we close the RAF, we have to wind the current search down.
+        // Before we close the dictionary, we have to wind the current search
+        // down.
         if (searchOperation != null) {
             Log.d(LOG, "Interrupting search to shut down.");
             currentSearchOperation = null;
             searchOperation.interrupted.set(true);
         }
 
+        Log.d(LOG, "Closing dictionary.");
+        dictionary = null;
+        closeDictChannel();
+    }
+
+    private void closeDictChannel() {
+        if (dictChannel == null) {
+            return;
+        }
         try {
-            Log.d(LOG, "Closing RAF.");
-            dictRaf.close();
+            dictChannel.close();
         } catch (IOException e) {
-            Log.e(LOG, "Failed to close dictionary", e);
+            Log.e(LOG, "Failed to close dictChannel", e);
         }
-        dictRaf = null;
+        dictChannel = null;
     }
 
     // --------------------------------------------------------------------------
@@ -943,12 +973,18 @@ public class DictionaryActivity extends SherlockListActivity {
     private void jumpToTextFromHyperLink(
             final String selectedText, final int defaultIndexToUse) {
         int indexToUse = -1;
-        for (int i = 0; i < dictionary.indices.size(); ++i) {
-            final Index index = dictionary.indices.get(i);
-            if (indexPrepFinished) {
-                System.out.println("Doing index lookup: on " + selectedText);
-                final IndexEntry indexEntry = index.findExact(selectedText);
+        if (indexPrepFinished) {
+            System.out.println("Doing index lookup: on " + selectedText);
+            List<IndexEntry> indexEntries = null;
+            try {
+                indexEntries = dictionary.findExact(selectedText, searchScanExecutor);
+            } catch (IOException e) {
+                Log.e(LOG, "Failed to look up " + selectedText, e);
+            }
+            for (int i = 0; indexEntries != null && i < indexEntries.size(); ++i) {
+                final IndexEntry indexEntry = indexEntries.get(i);
                 if (indexEntry != null) {
+                    final Index index = dictionary.indices.get(i);
                     final TokenRow tokenRow = index.rows.get(indexEntry.startRow)
                             .getTokenRow(false);
                     if (tokenRow != null && tokenRow.hasMainEntry) {
@@ -956,9 +992,9 @@ public class DictionaryActivity extends SherlockListActivity {
                         break;
                     }
                 }
-            } else {
-                Log.w(LOG, "Skipping findExact on index " + index.shortName);
             }
+        } else {
+            Log.w(LOG, "Skipping findExact on indices");
         }
         if (indexToUse == -1) {
             indexToUse = defaultIndexToUse;
@@ -992,7 +1028,7 @@ public class DictionaryActivity extends SherlockListActivity {
     @Override
     protected void onListItemClick(ListView l, View v, int row, long id) {
         defocusSearchText();
-        if (clickOpensContextMenu && dictRaf != null) {
+        if (clickOpensContextMenu && dictionary != null) {
             openContextMenu(v);
         }
     }
@@ -1135,8 +1171,14 @@ public class DictionaryActivity extends SherlockListActivity {
                         }
                         jumpToRow(searchResult.startRow);
                     } else if (searchOperation.multiWordSearchResult != null) {
-                        // Multi-row search....
+                        // Multi-row search: the ranked result replaces the
+                        // rows streamed in while searching.
                         setFiltered(searchOperation);
+                        if (searchOperation.multiWordSearchTruncated) {
+                            Toast.makeText(DictionaryActivity.this,
+                                    getString(R.string.searchTruncated),
+                                    Toast.LENGTH_SHORT).show();
+                        }
                     } else {
                         throw new IllegalStateException("This should never happen.");
                     }
@@ -1154,8 +1196,35 @@ public class DictionaryActivity extends SherlockListActivity {
         getListView().setSelected(true);
     }
 
+    /**
+     * Shows a batch of multi-word search results as soon as it's found,
+     * rather than waiting for the whole search.
+     */
+    private void searchRowsFound(final SearchOperation searchOperation,
+            final List<RowBase> rows) {
+        if (searchOperation.interrupted.get()
+                || searchOperation != this.currentSearchOperation) {
+            return;
+        }
+        final boolean first = searchOperation.streamedRows.isEmpty();
+        searchOperation.streamedRows.addAll(rows);
+        if (first) {
+            if (nextWordMenuItem != null) {
+                nextWordMenuItem.setEnabled(false);
+                previousWordMenuItem.setEnabled(false);
+            }
+            rowsToShow = searchOperation.streamedRows;
+            setListAdapter(new IndexAdapter(index, rowsToShow, searchOperation.searchTokens));
+        } else if (rowsToShow == searchOperation.streamedRows) {
+            ((BaseAdapter) getListAdapter()).notifyDataSetChanged();
+        }
+    }
+
     static final Pattern WHITESPACE = Pattern.compile("\\s+");
 
+    // After this, a multi-word search shows what it has found so far.
+    static final long MULTI_WORD_SEARCH_TIMEOUT_MILLIS = 1000;
+
     final class SearchOperation implements Runnable {
 
         final AtomicBoolean interrupted = new AtomicBoolean(false);
@@ -1166,17 +1235,26 @@ public class DictionaryActivity extends SherlockListActivity {
 
         final Index index;
 
+        final Index.SearchSession searchSession;
+
         long searchStartMillis;
 
         Index.IndexEntry searchResult;
 
         List<RowBase> multiWordSearchResult;
 
+        boolean multiWordSearchTruncated;
+
+        // The multi-word results shown so far; only touched on the UI thread.
+        final List<RowBase> streamedRows = new ArrayList<RowBase>();
+
         boolean done = false;
 
-        SearchOperation(final String searchText, final Index index) {
+        SearchOperation(final String searchText, final Index index,
+                final Index.SearchSession searchSession) {
             this.searchText = StringUtil.normalizeWhitespace(searchText);
             this.index = index;
+            this.searchSession = searchSession;
         }
 
         public String toString() {
@@ -1189,16 +1267,33 @@ public class DictionaryActivity extends SherlockListActivity {
                 searchStartMillis = System.currentTimeMillis();
                 final String[] searchTokenArray = WHITESPACE.split(searchText);
                 if (searchTokenArray.length == 1) {
-                    searchResult = index.findInsertionPoint(searchText, interrupted);
+                    searchResult = searchSession.findInsertionPoint(searchText, interrupted);
                 } else {
                     searchTokens = Arrays.asList(searchTokenArray);
+                    final SearchContext searchContext = new SearchContext(interrupted,
+                            MULTI_WORD_SEARCH_TIMEOUT_MILLIS);
                     multiWordSearchResult = index.multiWordSearch(searchText, searchTokens,
-                            interrupted);
+                            searchContext, Integer.MAX_VALUE, searchScanExecutor,
+                            new Index.SearchListener() {
+                                @Override
+                                public void onRows(final RowMatchType matchType,
+                                        final List<RowBase> rows) {
+                                    final List<RowBase> batch = new ArrayList<RowBase>(rows);
+                                    uiHandler.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            searchRowsFound(SearchOperation.this, batch);
+                                        }
+                                    });
+                                }
+                            });
+                    multiWordSearchTruncated = searchContext.isTruncated();
                 }
                 Log.d(LOG,
                         "searchText=" + searchText + ", searchDuration="
                                 + (System.currentTimeMillis() - searchStartMillis)
-                                + ", interrupted=" + interrupted.get());
+                                + ", interrupted=" + interrupted.get()
+                                + ", truncated=" + multiWordSearchTruncated);
                 if (!interrupted.get()) {
                     uiHandler.post(new Runnable() {
                         @Override
@@ -1555,7 +1650,7 @@ public class DictionaryActivity extends SherlockListActivity {
             });
             dialog.show();
         }
-        if (dictRaf == null) {
+        if (dictionary == null) {
             Log.d(LOG, "searchText changed during shutdown, doing nothing.");
             return;
         }
@@ -1568,7 +1663,10 @@ public class DictionaryActivity extends SherlockListActivity {
             Log.d(LOG, "Interrupting currentSearchOperation.");
             currentSearchOperation.interrupted.set(true);
         }
-        currentSearchOperation = new SearchOperation(text, index);
+        if (searchSession == null || searchSession.getIndex() != index) {
+            searchSession = index.newSearchSession();
+        }
+        currentSearchOperation = new SearchOperation(text, index, searchSession);
         searchExecutor.execute(currentSearchOperation);
     }
 
@@ -34,6 +34,8 @@ import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.MenuItem.OnMenuItemClickListener;
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
 import com.hughes.android.dictionary.engine.Dictionary;
+import com.hughes.android.dictionary.engine.DictionaryPool;
+import com.hughes.android.dictionary.engine.FederatedSearch;
 import com.hughes.android.dictionary.engine.Language;
 import com.hughes.android.dictionary.engine.Language.LanguageResources;
 import com.hughes.android.dictionary.engine.TransliteratorManager;
@@ -53,6 +55,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DictionaryApplication extends Application {
 
@@ -108,6 +114,13 @@ public class DictionaryApplication extends Application {
 
     private File dictDir;
 
+    // Created when first needed.
+    private FederatedSearch federatedSearch = null;
+    private ExecutorService backgroundExecutor = null;
+
+    // How many dictionaries federated searches keep open between searches.
+    private static final int MAX_OPEN_DICTIONARIES = 8;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -455,6 +468,66 @@ public class DictionaryApplication extends Application {
         return result;
     }
 
+    /**
+     * @return the files of the dictionaries on the device with an Index named
+     *         indexShortName, in the user's order.
+     */
+    public synchronized List<File> getDictionaryFilesWithIndex(final String indexShortName) {
+        final List<File> result = new ArrayList<File>();
+        for (final DictionaryInfo dictionaryInfo : getDictionariesOnDevice(null)) {
+            for (final IndexInfo indexInfo : dictionaryInfo.indexInfos) {
+                if (indexInfo.shortName.equals(indexShortName)) {
+                    result.add(getPath(dictionaryInfo.uncompressedFilename));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Daemon threads, one per processor, for work that's split up to run in
+     * parallel: federated searches, and verifying downloaded dictionaries.
+     */
+    public synchronized ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                    .availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    public synchronized FederatedSearch getFederatedSearch() {
+        if (federatedSearch == null) {
+            federatedSearch = new FederatedSearch(new DictionaryPool(MAX_OPEN_DICTIONARIES),
+                    getBackgroundExecutor());
+        }
+        return federatedSearch;
+    }
+
+    /**
+     * Looks exactToken up in every dictionary on the device with an Index
+     * named indexShortName. Call it off the UI thread: dictionaries that
+     * aren't open yet get opened.
+     *
+     * @param listener told about each hit as it's found, or null.
+     * @return the hits, in the user's order of dictionaries, or null if
+     *         interrupted.
+     */
+    public List<FederatedSearch.Hit> federatedFindExact(final String indexShortName,
+            final String exactToken, final FederatedSearch.Listener listener,
+            final AtomicBoolean interrupted) throws IOException {
+        return getFederatedSearch().findExact(getDictionaryFilesWithIndex(indexShortName),
+                indexShortName, exactToken, listener, interrupted);
+    }
+
     public List<DictionaryInfo> getDownloadableDictionaries(String[] filters) {
         final List<DictionaryInfo> result = new ArrayList<DictionaryInfo>(
                 dictionaryConfig.dictionaryFilesOrdered.size());
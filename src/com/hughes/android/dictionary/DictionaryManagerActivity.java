@@ -55,6 +55,7 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.widget.SearchView;
 import com.actionbarsherlock.widget.SearchView.OnQueryTextListener;
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
+import com.hughes.android.dictionary.engine.Dictionary;
 import com.hughes.android.util.IntentLauncher;
 
 import java.io.File;
@@ -104,7 +105,7 @@ public class DictionaryManagerActivity extends SherlockListActivity {
 
     final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onReceive(final Context context, Intent intent) {
             final String action = intent.getAction();
 
             if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
@@ -140,30 +141,25 @@ public class DictionaryManagerActivity extends SherlockListActivity {
                         Toast.LENGTH_LONG).show();
                 
                 
+                // Unzipping and verifying read the whole dictionary, so they
+                // don't run on the UI thread.
+                final Handler handler = new Handler();
                 final File localZipFile = new File(Uri.parse(dest).getPath());
-                try {
-                    ZipFile zipFile = new ZipFile(localZipFile);
-                    final ZipEntry zipEntry = zipFile.entries().nextElement();
-                    Log.d(LOG, "Unzipping entry: " + zipEntry.getName());
-                    final InputStream zipIn = zipFile.getInputStream(zipEntry);
-                    File targetFile = new File(application.getDictDir(), zipEntry.getName());
-                    if (targetFile.exists()) {
-                        targetFile.renameTo(new File(targetFile.getAbsolutePath().replace(".quickdic", ".bak.quickdic")));
-                        targetFile = new File(application.getDictDir(), zipEntry.getName());
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final boolean installed = installDictionary(localZipFile);
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                Toast.makeText(context, getString(installed
+                                        ? R.string.installationFinished
+                                        : R.string.unzippingFailed, dest),
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        });
                     }
-                    final OutputStream zipOut = new FileOutputStream(targetFile);
-                    copyStream(zipIn, zipOut);
-                    zipFile.close();
-                    application.backgroundUpdateDictionaries(dictionaryUpdater);
-                    Toast.makeText(context, getString(R.string.installationFinished, dest),
-                            Toast.LENGTH_LONG).show();
-                } catch (Exception e) {
-                    Toast.makeText(context, getString(R.string.unzippingFailed, dest),
-                            Toast.LENGTH_LONG).show();
-                    Log.e(LOG, "Failed to unzip.", e);
-                } finally {
-                    localZipFile.delete();
-                }
+                }, "installDictionary").start();
             }
         }
     };
@@ -290,6 +286,54 @@ public class DictionaryManagerActivity extends SherlockListActivity {
         unregisterReceiver(broadcastReceiver);
     }
 
+    /**
+     * Unzips a downloaded dictionary into the dictionary directory and
+     * verifies it. The dictionary it replaces is kept as a backup, and put
+     * back if the new one can't be unzipped or doesn't verify.
+     *
+     * @return true if the new dictionary was installed.
+     */
+    private boolean installDictionary(final File localZipFile) {
+        File targetFile = null;
+        File backupFile = null;
+        try {
+            final ZipFile zipFile = new ZipFile(localZipFile);
+            try {
+                final ZipEntry zipEntry = zipFile.entries().nextElement();
+                Log.d(LOG, "Unzipping entry: " + zipEntry.getName());
+                final File file = new File(application.getDictDir(), zipEntry.getName());
+                if (file.exists()) {
+                    backupFile = new File(file.getAbsolutePath().replace(".quickdic",
+                            ".bak.quickdic"));
+                    if (!file.renameTo(backupFile)) {
+                        throw new IOException("Couldn't back up: " + file);
+                    }
+                }
+                // From here on, a failure deletes targetFile.
+                targetFile = file;
+                copyStream(zipFile.getInputStream(zipEntry), new FileOutputStream(targetFile));
+            } finally {
+                zipFile.close();
+            }
+            Dictionary.verify(targetFile, application.getBackgroundExecutor());
+        } catch (Exception e) {
+            // Not just IOExceptions: a corrupt file can make reading it throw
+            // RuntimeExceptions too.
+            Log.e(LOG, "Failed to install: " + localZipFile, e);
+            if (targetFile != null) {
+                targetFile.delete();
+                if (backupFile != null) {
+                    backupFile.renameTo(targetFile);
+                }
+            }
+            return false;
+        } finally {
+            localZipFile.delete();
+        }
+        application.backgroundUpdateDictionaries(dictionaryUpdater);
+        return true;
+    }
+
     private static int copyStream(final InputStream in, final OutputStream out)
             throws IOException {
         int bytesRead;
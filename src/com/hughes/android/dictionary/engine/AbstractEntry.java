@@ -16,6 +16,8 @@ package com.hughes.android.dictionary.engine;
 
 import com.hughes.util.IndexedObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
@@ -28,7 +30,7 @@ public abstract class AbstractEntry extends IndexedObject {
         this.entrySource = entrySource;
     }
 
-    public AbstractEntry(Dictionary dictionary, RandomAccessFile raf, final int index)
+    public AbstractEntry(Dictionary dictionary, DataInput raf, final int index)
             throws IOException {
         super(index);
         if (dictionary.dictFileVersion >= 1) {
@@ -40,7 +42,11 @@ public abstract class AbstractEntry extends IndexedObject {
     }
 
     public void write(RandomAccessFile raf) throws IOException {
-        raf.writeShort(entrySource.index());
+        write((DataOutput) raf);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeShort(entrySource.index());
     }
 
     public abstract void addToDictionary(final Dictionary dictionary);
@@ -15,26 +15,59 @@
 package com.hughes.android.dictionary.engine;
 
 import com.hughes.android.dictionary.DictionaryInfo;
+import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
+import com.hughes.android.util.BufferList;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.ParallelMap;
 import com.hughes.util.CachingList;
 import com.hughes.util.raf.RAFList;
 import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Dictionary implements RAFSerializable<Dictionary> {
 
     static final int CACHE_SIZE = 5000;
 
-    static final int CURRENT_DICT_VERSION = 6;
+    static final int CURRENT_DICT_VERSION = 15;
     static final String END_OF_DICTIONARY = "END OF DICTIONARY";
 
+    // Sections whose offsets are in the table of contents.
+    static final int SECTION_SOURCES = 0;
+    static final int SECTION_PAIR_ENTRIES = 1;
+    static final int SECTION_TEXT_ENTRIES = 2;
+    static final int SECTION_HTML_ENTRIES = 3;
+    static final int SECTION_INDICES = 4;
+    static final int SECTION_END = 5;
+    static final int NUM_SECTIONS = 6;
+
+    // Html entries compressed per task when writing in parallel.
+    private static final int HTML_ENCODE_CHUNK_SIZE = 64;
+
+    // Enough to hold the header of most dictionaries.
+    private static final int HEADER_READ_SIZE = 4096;
+
     // persisted
     final int dictFileVersion;
     final long creationMillis;
@@ -45,9 +78,33 @@ public class Dictionary implements RAFSerializable<Dictionary> {
     public final List<EntrySource> sources;
     public final List<Index> indices;
 
+    // Version 9: where each section starts, from the table of contents.
+    final long[] sectionOffsets;
+
+    // Version 10: what html bodies are compressed against, or null if each is
+    // gzipped on its own.
+    final byte[] htmlPresetDictionary;
+    // Whether write() should train and use an htmlPresetDictionary.
+    boolean writeHtmlPresetDictionary = true;
+    // Version 11: whether write() should store pairEntries in compressed
+    // blocks.
+    boolean writePairEntryBlocks = true;
+
     /**
      * dictFileVersion 1 adds: <li>links to sources? dictFileVersion 2 adds: <li>
-     * counts of tokens in indices.
+     * counts of tokens in indices. dictFileVersion 7 adds: <li>optional
+     * collation sort keys for index entries. dictFileVersion 8 adds: <li>
+     * front-coded blocks of index entries. dictFileVersion 9 adds: <li>a
+     * table of contents after the header, with the IndexInfos and section
+     * offsets. dictFileVersion 10 adds: <li>an optional preset dictionary
+     * for compressing html entries. dictFileVersion 11 adds: <li>optionally
+     * storing pair entries in compressed blocks. dictFileVersion 12 adds: <li>
+     * a CRC32 of each section and each index in the table of contents.
+     * dictFileVersion 13 adds: <li>optional posting lists of the entries
+     * under each index entry. dictFileVersion 14 adds: <li>an optional
+     * suffix array of each index's normalized tokens. dictFileVersion 15
+     * adds: <li>optional positions of each index entry's token in the
+     * entries of its posting list.
      */
 
     public Dictionary(final String dictInfo) {
@@ -59,72 +116,281 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         htmlEntries = new ArrayList<HtmlEntry>();
         sources = new ArrayList<EntrySource>();
         indices = new ArrayList<Index>();
+        sectionOffsets = null;
+        htmlPresetDictionary = null;
     }
 
+    /**
+     * Reads through raf's FileChannel with positional reads, so raf's file
+     * pointer is never used and concurrent readers don't contend for it.
+     */
     public Dictionary(final RandomAccessFile raf) throws IOException {
-        dictFileVersion = raf.readInt();
+        this(new ByteSource.Channel(raf.getChannel()));
+    }
+
+    /**
+     * Reads the dictionary straight out of buffer, which should hold the
+     * whole file (see {@link #map(File)}).
+     */
+    public Dictionary(final ByteBuffer buffer) throws IOException {
+        this(new ByteSource.Mapped(buffer));
+    }
+
+    /**
+     * Entries and index rows are only read when they're needed, and reads
+     * don't share a file pointer, so there's no locking.
+     */
+    public Dictionary(final ByteSource source) throws IOException {
+        final DataInputBuffer in = new DataInputBuffer(source, 0, HEADER_READ_SIZE);
+        dictFileVersion = in.readInt();
         if (dictFileVersion < 0 || dictFileVersion > CURRENT_DICT_VERSION) {
             throw new IOException("Invalid dictionary version: " + dictFileVersion);
         }
-        creationMillis = raf.readLong();
-        dictInfo = raf.readUTF();
+        creationMillis = in.readLong();
+        dictInfo = in.readUTF();
+        if (dictFileVersion >= 9) {
+            sectionOffsets = new long[NUM_SECTIONS];
+            readTableOfContents(in, dictFileVersion, null, sectionOffsets);
+            // Catches truncated files now rather than during a search.
+            if (sectionOffsets[SECTION_END] > source.length()) {
+                throw new IOException("Dictionary seems corrupt: length=" + source.length()
+                        + ", expected more than " + sectionOffsets[SECTION_END]);
+            }
+        } else {
+            sectionOffsets = null;
+        }
 
-        // Load the sources, then seek past them, because reading them later
-        // disrupts the offset.
         try {
-            final RAFList<EntrySource> rafSources = RAFList.create(raf, new EntrySource.Serializer(
-                    this), raf.getFilePointer());
-            sources = new ArrayList<EntrySource>(rafSources);
-            raf.seek(rafSources.getEndOffset());
-
-            pairEntries = CachingList.create(
-                    RAFList.create(raf, new PairEntry.Serializer(this), raf.getFilePointer()),
-                    CACHE_SIZE);
+            sources = new ArrayList<EntrySource>(BufferList.create(in,
+                    new EntrySource.Serializer(this)));
+            if (dictFileVersion >= 11 && in.readBoolean()) {
+                pairEntries = new PairEntryBlockList(this, in);
+            } else {
+                pairEntries = CachingList.create(
+                        BufferList.create(in, new PairEntry.Serializer(this)), CACHE_SIZE);
+            }
             textEntries = CachingList.create(
-                    RAFList.create(raf, new TextEntry.Serializer(this), raf.getFilePointer()),
-                    CACHE_SIZE);
+                    BufferList.create(in, new TextEntry.Serializer(this)), CACHE_SIZE);
+            htmlPresetDictionary = dictFileVersion >= 10 ? readHtmlPresetDictionary(in) : null;
             if (dictFileVersion >= 5) {
                 htmlEntries = CachingList.create(
-                        RAFList.create(raf, new HtmlEntry.Serializer(this), raf.getFilePointer()),
-                        CACHE_SIZE);
+                        BufferList.create(in, new HtmlEntry.Serializer(this)), CACHE_SIZE);
             } else {
                 htmlEntries = Collections.emptyList();
             }
-            indices = CachingList.createFullyCached(RAFList.create(raf, indexSerializer,
-                    raf.getFilePointer()));
+            indices = CachingList.createFullyCached(BufferList.create(in,
+                    indexBufferSerializer));
         } catch (RuntimeException e) {
             final IOException ioe = new IOException("RuntimeException loading dictionary");
             ioe.initCause(e);
             throw ioe;
         }
-        final String end = raf.readUTF();
+        final String end = in.readUTF();
         if (!end.equals(END_OF_DICTIONARY)) {
             throw new IOException("Dictionary seems corrupt: " + end);
         }
     }
 
+    /**
+     * Maps the whole file read-only, for {@link #Dictionary(ByteBuffer)}. The
+     * mapping stays valid after the file is closed.
+     */
+    public static MappedByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
     @Override
     public void write(RandomAccessFile raf) throws IOException {
+        write(raf, null);
+    }
+
+    /**
+     * Compresses entries and encodes indices on executor, then writes
+     * everything in order. The file is the same as write(raf) would produce.
+     *
+     * @param executor where to do the work, or null to do it all on this
+     *            thread.
+     */
+    public void write(final RandomAccessFile raf, final ExecutorService executor)
+            throws IOException {
+        if (executor == null) {
+            write(raf, null, null);
+            return;
+        }
+        // Indices take longest, so start them first.
+        final Map<Index, Future<Index.EncodedParts>> indexParts = new HashMap<Index, Future<Index.EncodedParts>>();
+        for (final Index index : indices) {
+            indexParts.put(index, executor.submit(new Callable<Index.EncodedParts>() {
+                @Override
+                public Index.EncodedParts call() throws IOException {
+                    return index.encodeParts();
+                }
+            }));
+        }
+        try {
+            write(raf, executor, indexParts);
+        } finally {
+            // Not cancel(true): see ByteSource.Channel.
+            for (final Future<Index.EncodedParts> future : indexParts.values()) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @param indexParts encoded on executor, or null to encode them here.
+     */
+    private void write(final RandomAccessFile raf, final ExecutorService executor,
+            final Map<Index, Future<Index.EncodedParts>> indexParts) throws IOException {
         raf.writeInt(dictFileVersion);
         raf.writeLong(creationMillis);
         raf.writeUTF(dictInfo);
+        final long[] offsets = new long[NUM_SECTIONS];
+        final long tocOffset = raf.getFilePointer();
+        final int[] checksums = new int[NUM_SECTIONS + indices.size()];
+        if (dictFileVersion >= 9) {
+            // Offsets and checksums get filled in once we know them.
+            writeTableOfContents(raf, offsets, checksums);
+        }
+        offsets[SECTION_SOURCES] = raf.getFilePointer();
         RAFList.write(raf, sources, new EntrySource.Serializer(this));
-        RAFList.write(raf, pairEntries, new PairEntry.Serializer(this));
+        offsets[SECTION_PAIR_ENTRIES] = raf.getFilePointer();
+        if (dictFileVersion >= 11) {
+            raf.writeBoolean(writePairEntryBlocks);
+        }
+        if (dictFileVersion >= 11 && writePairEntryBlocks) {
+            PairEntryBlockList.write(raf, pairEntries, executor);
+        } else {
+            RAFList.write(raf, pairEntries, new PairEntry.Serializer(this));
+        }
+        offsets[SECTION_TEXT_ENTRIES] = raf.getFilePointer();
         RAFList.write(raf, textEntries, new TextEntry.Serializer(this));
-        RAFList.write(raf, htmlEntries, new HtmlEntry.Serializer(this));
-        RAFList.write(raf, indices, indexSerializer);
+        offsets[SECTION_HTML_ENTRIES] = raf.getFilePointer();
+        final byte[] presetDictionary;
+        if (dictFileVersion >= 10 && writeHtmlPresetDictionary) {
+            presetDictionary = HtmlCompression.trainPresetDictionary(htmlEntries);
+        } else {
+            presetDictionary = null;
+        }
+        if (dictFileVersion >= 10) {
+            raf.writeInt(presetDictionary == null ? 0 : presetDictionary.length);
+            if (presetDictionary != null) {
+                raf.write(presetDictionary);
+            }
+        }
+        final List<byte[]> encodedHtmlEntries = ParallelMap.map(executor, htmlEntries,
+                new ParallelMap.Function<HtmlEntry, byte[]>() {
+                    @Override
+                    public byte[] apply(final HtmlEntry htmlEntry) throws IOException {
+                        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        final DataOutputStream out = new DataOutputStream(bytes);
+                        htmlEntry.write(out, presetDictionary);
+                        out.close();
+                        return bytes.toByteArray();
+                    }
+                }, HTML_ENCODE_CHUNK_SIZE);
+        BufferList.write(raf, encodedHtmlEntries);
+        offsets[SECTION_INDICES] = raf.getFilePointer();
+        BufferList.write(raf, indices, indexWriter(indexParts));
+        offsets[SECTION_END] = raf.getFilePointer();
         raf.writeUTF(END_OF_DICTIONARY);
+        if (dictFileVersion >= 9) {
+            final long endOffset = raf.getFilePointer();
+            if (dictFileVersion >= 12) {
+                System.arraycopy(SectionChecksums.compute(raf.getChannel(),
+                        SectionChecksums.getSections(new ByteSource.Channel(raf.getChannel()),
+                                offsets), executor), 0, checksums, 0, checksums.length);
+            }
+            raf.seek(tocOffset);
+            writeTableOfContents(raf, offsets, checksums);
+            raf.seek(endOffset);
+        }
     }
 
-    private final RAFListSerializer<Index> indexSerializer = new RAFListSerializer<Index>() {
-        @Override
-        public Index read(RandomAccessFile raf, final int readIndex) throws IOException {
-            return new Index(Dictionary.this, raf);
+    private static byte[] readHtmlPresetDictionary(final DataInputBuffer in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > HtmlCompression.MAX_PRESET_SIZE) {
+            throw new IOException("Invalid html preset dictionary length: " + length);
         }
+        if (length == 0) {
+            return null;
+        }
+        final byte[] result = new byte[length];
+        in.readFully(result);
+        return result;
+    }
+
+    private void writeTableOfContents(final RandomAccessFile raf, final long[] offsets,
+            final int[] checksums) throws IOException {
+        raf.writeInt(indices.size());
+        for (final Index index : indices) {
+            final IndexInfo indexInfo = index.getIndexInfo();
+            raf.writeUTF(indexInfo.shortName);
+            raf.writeInt(indexInfo.allTokenCount);
+            raf.writeInt(indexInfo.mainTokenCount);
+        }
+        for (final long offset : offsets) {
+            raf.writeLong(offset);
+        }
+        if (dictFileVersion >= 12) {
+            for (final int checksum : checksums) {
+                raf.writeInt(checksum);
+            }
+        }
+    }
 
+    /**
+     * @param indexInfos filled in if not null.
+     * @return the checksums, or null before version 12.
+     */
+    private static int[] readTableOfContents(final DataInput in, final int dictFileVersion,
+            final List<IndexInfo> indexInfos, final long[] offsets) throws IOException {
+        final int numIndices = in.readInt();
+        for (int i = 0; i < numIndices; ++i) {
+            final String shortName = in.readUTF();
+            final int allTokenCount = in.readInt();
+            final int mainTokenCount = in.readInt();
+            if (indexInfos != null) {
+                indexInfos.add(new IndexInfo(shortName, allTokenCount, mainTokenCount));
+            }
+        }
+        for (int i = 0; i < NUM_SECTIONS; ++i) {
+            offsets[i] = in.readLong();
+        }
+        if (dictFileVersion < 12) {
+            return null;
+        }
+        final int[] checksums = new int[NUM_SECTIONS + numIndices];
+        for (int i = 0; i < checksums.length; ++i) {
+            checksums[i] = in.readInt();
+        }
+        return checksums;
+    }
+
+    /**
+     * @param indexParts encoded on an executor, or null to encode each Index
+     *            as it's written.
+     */
+    private static BufferList.Writer<Index> indexWriter(
+            final Map<Index, Future<Index.EncodedParts>> indexParts) {
+        return new BufferList.Writer<Index>() {
+            @Override
+            public void write(RandomAccessFile raf, Index t) throws IOException {
+                t.write(raf, indexParts == null ? t.encodeParts()
+                        : ParallelMap.getResult(indexParts.get(t)));
+            }
+        };
+    }
+
+    private final BufferListSerializer<Index> indexBufferSerializer = new BufferListSerializer<Index>() {
         @Override
-        public void write(RandomAccessFile raf, Index t) throws IOException {
-            t.write(raf);
+        public Index read(DataInputBuffer in, final int readIndex) throws IOException {
+            return new Index(Dictionary.this, in);
         }
     };
 
@@ -142,6 +408,13 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         }
     };
 
+    final BufferListSerializer<HtmlEntry> htmlEntryIndexBufferSerializer = new BufferListSerializer<HtmlEntry>() {
+        @Override
+        public HtmlEntry read(DataInputBuffer in, int readIndex) throws IOException {
+            return htmlEntries.get(in.readInt());
+        }
+    };
+
     public void print(final PrintStream out) {
         out.println("dictInfo=" + dictInfo);
         for (final EntrySource entrySource : sources) {
@@ -155,6 +428,46 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         }
     }
 
+    /**
+     * Looks exactToken up in every Index at once, so it takes as long as the
+     * slowest Index rather than all of them.
+     *
+     * @param executor where to search, or null to search one Index after
+     *            another on this thread.
+     * @return for each of indices, its IndexEntry for exactToken, or null.
+     */
+    public List<Index.IndexEntry> findExact(final String exactToken,
+            final ExecutorService executor) throws IOException {
+        return ParallelMap.map(executor, indices,
+                new ParallelMap.Function<Index, Index.IndexEntry>() {
+                    @Override
+                    public Index.IndexEntry apply(final Index index) {
+                        return index.findExact(exactToken);
+                    }
+                }, 1);
+    }
+
+    /**
+     * Index.findInsertionPoint on every Index at once.
+     *
+     * @param executor where to search, or null to search one Index after
+     *            another on this thread.
+     * @return for each of indices, its insertion point for token, or null if
+     *         interrupted.
+     */
+    public List<Index.IndexEntry> findInsertionPoints(final String token,
+            final ExecutorService executor, final AtomicBoolean interrupted)
+            throws IOException {
+        final List<Index.IndexEntry> result = ParallelMap.map(executor, indices,
+                new ParallelMap.Function<Index, Index.IndexEntry>() {
+                    @Override
+                    public Index.IndexEntry apply(final Index index) {
+                        return index.findInsertionPoint(token, interrupted);
+                    }
+                }, 1);
+        return interrupted.get() ? null : result;
+    }
+
     public DictionaryInfo getDictionaryInfo() {
         final DictionaryInfo result = new DictionaryInfo();
         result.creationMillis = this.creationMillis;
@@ -165,12 +478,38 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         return result;
     }
 
+    /**
+     * Since version 9 this only reads the header; older dictionaries get
+     * opened completely.
+     */
     public static DictionaryInfo getDictionaryInfo(final File file) {
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(file, "r");
-            final Dictionary dict = new Dictionary(raf);
-            final DictionaryInfo dictionaryInfo = dict.getDictionaryInfo();
+            final ByteSource source = new ByteSource.Channel(raf.getChannel());
+            final DataInputBuffer in = new DataInputBuffer(source, 0, HEADER_READ_SIZE);
+            final int dictFileVersion = in.readInt();
+            final DictionaryInfo dictionaryInfo;
+            if (dictFileVersion >= 9 && dictFileVersion <= CURRENT_DICT_VERSION) {
+                dictionaryInfo = new DictionaryInfo();
+                dictionaryInfo.creationMillis = in.readLong();
+                dictionaryInfo.dictInfo = in.readUTF();
+                final long[] sectionOffsets = new long[NUM_SECTIONS];
+                readTableOfContents(in, dictFileVersion, dictionaryInfo.indexInfos,
+                        sectionOffsets);
+                // Like the constructor, so truncated files aren't listed; and
+                // the end marker is one small read away.
+                if (sectionOffsets[SECTION_END] < 0
+                        || sectionOffsets[SECTION_END] > source.length()) {
+                    return null;
+                }
+                in.seek(sectionOffsets[SECTION_END]);
+                if (!in.readUTF().equals(END_OF_DICTIONARY)) {
+                    return null;
+                }
+            } else {
+                dictionaryInfo = new Dictionary(source).getDictionaryInfo();
+            }
             dictionaryInfo.uncompressedFilename = file.getName();
             dictionaryInfo.uncompressedBytes = file.length();
             raf.close();
@@ -188,4 +527,50 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         }
     }
 
+    /**
+     * Reads all of file and checks it against the checksums written with it,
+     * reading sections in parallel on executor, or on this thread if it's
+     * null. Files from before version 12 have no checksums, so they're only
+     * checked as far as opening them checks them.
+     *
+     * @throws IOException describing the first problem found.
+     */
+    public static void verify(final File file, final ExecutorService executor)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteSource source = new ByteSource.Channel(raf.getChannel());
+            final DataInputBuffer in = new DataInputBuffer(source, 0, HEADER_READ_SIZE);
+            final int dictFileVersion = in.readInt();
+            if (dictFileVersion < 12 || dictFileVersion > CURRENT_DICT_VERSION) {
+                new Dictionary(source);
+                return;
+            }
+            in.readLong();
+            in.readUTF();
+            final long[] offsets = new long[NUM_SECTIONS];
+            final int[] expected = readTableOfContents(in, dictFileVersion, null, offsets);
+            final List<SectionChecksums.Section> sections = SectionChecksums.getSections(
+                    source, offsets);
+            if (sections.size() != expected.length) {
+                throw new IOException("Dictionary seems corrupt: " + expected.length
+                        + " checksums for " + sections.size() + " sections");
+            }
+            final int[] actual = SectionChecksums.compute(raf.getChannel(), sections, executor);
+            for (int i = 0; i < actual.length; ++i) {
+                if (actual[i] != expected[i]) {
+                    throw new IOException("Dictionary seems corrupt: bad checksum for "
+                            + sections.get(i).name);
+                }
+            }
+            in.seek(offsets[SECTION_END]);
+            final String end = in.readUTF();
+            if (!end.equals(END_OF_DICTIONARY)) {
+                throw new IOException("Dictionary seems corrupt: " + end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
 }
@@ -0,0 +1,114 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.util.ParallelMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps up to maxOpen Dictionaries open, mapped from their files, dropping
+ * the least recently used. A Dictionary is opened by the first thread that
+ * asks for it; others asking meanwhile wait for that instead of opening it
+ * again. A file that's changed since it was opened is opened again.
+ */
+public final class DictionaryPool {
+
+    private static final class PooledDictionary {
+        final FutureTask<Dictionary> dictionary;
+        final long lastModified;
+
+        PooledDictionary(final FutureTask<Dictionary> dictionary, final long lastModified) {
+            this.dictionary = dictionary;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Map<File, PooledDictionary> entries;
+
+    public DictionaryPool(final int maxOpen) {
+        entries = new LinkedHashMap<File, PooledDictionary>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<File, PooledDictionary> eldest) {
+                return size() > maxOpen;
+            }
+        };
+    }
+
+    /**
+     * @return the Dictionary in file, opening it on this thread if no other
+     *         thread has.
+     */
+    public Dictionary get(final File file) throws IOException {
+        final long lastModified = file.lastModified();
+        PooledDictionary entry;
+        boolean open = false;
+        synchronized (this) {
+            entry = entries.get(file);
+            if (entry == null || entry.lastModified != lastModified) {
+                entry = new PooledDictionary(new FutureTask<Dictionary>(new Callable<Dictionary>() {
+                    @Override
+                    public Dictionary call() throws IOException {
+                        return new Dictionary(Dictionary.map(file));
+                    }
+                }), lastModified);
+                entries.put(file, entry);
+                open = true;
+            }
+        }
+        if (open) {
+            entry.dictionary.run();
+        }
+        try {
+            return ParallelMap.getResult(entry.dictionary);
+        } catch (IOException e) {
+            remove(file, entry);
+            throw e;
+        } catch (RuntimeException e) {
+            remove(file, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets a failed open, so the next get() tries again.
+     */
+    private synchronized void remove(final File file, final PooledDictionary entry) {
+        if (entries.get(file) == entry) {
+            entries.remove(file);
+        }
+    }
+
+    public synchronized boolean isOpen(final File file) {
+        final PooledDictionary entry = entries.get(file);
+        return entry != null && entry.dictionary.isDone();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+}
@@ -14,9 +14,12 @@
 
 package com.hughes.android.dictionary.engine;
 
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
 import com.hughes.util.IndexedObject;
 import com.hughes.util.raf.RAFListSerializer;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
@@ -47,7 +50,8 @@ public class EntrySource extends IndexedObject implements Serializable {
         return name;
     }
 
-    public static final class Serializer implements RAFListSerializer<EntrySource> {
+    public static final class Serializer implements RAFListSerializer<EntrySource>,
+            BufferListSerializer<EntrySource> {
 
         final Dictionary dictionary;
 
@@ -58,6 +62,16 @@ public class EntrySource extends IndexedObject implements Serializable {
         @Override
         public EntrySource read(RandomAccessFile raf, int readIndex)
                 throws IOException {
+            return read((DataInput) raf, readIndex);
+        }
+
+        @Override
+        public EntrySource read(DataInputBuffer in, int readIndex)
+                throws IOException {
+            return read((DataInput) in, readIndex);
+        }
+
+        private EntrySource read(DataInput raf, int readIndex) throws IOException {
             final String name = raf.readUTF();
             final int numEntries = dictionary.dictFileVersion >= 3 ? raf.readInt() : 0;
             return new EntrySource(readIndex, name, numEntries);
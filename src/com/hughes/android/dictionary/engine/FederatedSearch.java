@@ -0,0 +1,147 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.util.ParallelMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Looks a token up in many dictionaries at once. Dictionaries come from a
+ * DictionaryPool, so ones that aren't open yet get opened on the executor as
+ * they're needed, and stay open for the next search.
+ */
+public final class FederatedSearch {
+
+    public static final class Hit {
+        public final File file;
+        public final Dictionary dictionary;
+        public final Index index;
+        public final IndexEntry indexEntry;
+
+        Hit(final File file, final Dictionary dictionary, final Index index,
+                final IndexEntry indexEntry) {
+            this.file = file;
+            this.dictionary = dictionary;
+            this.index = index;
+            this.indexEntry = indexEntry;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + ":" + index.shortName + ":" + indexEntry.token;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on one of the executor's threads as each dictionary finds
+         * something.
+         */
+        void onHit(Hit hit);
+    }
+
+    private final DictionaryPool dictionaryPool;
+    private final ExecutorService executor;
+
+    public FederatedSearch(final DictionaryPool dictionaryPool, final ExecutorService executor) {
+        this.dictionaryPool = dictionaryPool;
+        this.executor = executor;
+    }
+
+    public DictionaryPool getDictionaryPool() {
+        return dictionaryPool;
+    }
+
+    /**
+     * Looks exactToken up in the Index named indexShortName of each of files.
+     * Files that can't be opened, or have no such Index, are skipped.
+     *
+     * @param listener told about hits as they're found, or null.
+     * @return the hits, in the order of files, or null if interrupted.
+     */
+    public List<Hit> findExact(final List<File> files, final String indexShortName,
+            final String exactToken, final Listener listener, final AtomicBoolean interrupted)
+            throws IOException {
+        final List<Future<Hit>> futures = new ArrayList<Future<Hit>>(files.size());
+        try {
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Hit>() {
+                    @Override
+                    public Hit call() {
+                        return findExact(file, indexShortName, exactToken, listener, interrupted);
+                    }
+                }));
+            }
+            final List<Hit> result = new ArrayList<Hit>();
+            for (final Future<Hit> future : futures) {
+                final Hit hit = ParallelMap.getResult(future);
+                if (interrupted.get()) {
+                    return null;
+                }
+                if (hit != null) {
+                    result.add(hit);
+                }
+            }
+            return result;
+        } finally {
+            for (final Future<Hit> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private Hit findExact(final File file, final String indexShortName,
+            final String exactToken, final Listener listener, final AtomicBoolean interrupted) {
+        if (interrupted.get()) {
+            return null;
+        }
+        final Dictionary dictionary;
+        try {
+            dictionary = dictionaryPool.get(file);
+        } catch (IOException e) {
+            System.out.println("Skipping " + file + ": " + e);
+            return null;
+        }
+        for (final Index index : dictionary.indices) {
+            if (!index.shortName.equals(indexShortName) || interrupted.get()) {
+                continue;
+            }
+            final IndexEntry indexEntry;
+            // Lookups share the Index's normalizer, which isn't thread-safe,
+            // and pooled dictionaries can be in more than one search.
+            synchronized (index) {
+                indexEntry = index.findExact(exactToken);
+            }
+            if (indexEntry != null) {
+                final Hit hit = new Hit(file, dictionary, index, indexEntry);
+                if (listener != null && !interrupted.get()) {
+                    listener.onHit(hit);
+                }
+                return hit;
+            }
+        }
+        return null;
+    }
+
+}
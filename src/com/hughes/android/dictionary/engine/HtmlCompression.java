@@ -0,0 +1,160 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.util.RawDeflate;
+import com.hughes.util.StringUtil;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compression of HtmlEntry bodies. Without a preset dictionary each body is
+ * gzipped on its own (the format before version 10). With one, each body is
+ * raw Deflate primed with the preset, so short entries don't each pay to
+ * build up a window of common markup.
+ */
+final class HtmlCompression {
+
+    // Deflate can't refer back further than this.
+    static final int MAX_PRESET_SIZE = 32 * 1024;
+
+    private static final int MAX_SAMPLE_ENTRIES = 2000;
+    private static final int MIN_FRAGMENT_LENGTH = 4;
+    private static final int MAX_FRAGMENT_LENGTH = 256;
+
+    private HtmlCompression() {
+    }
+
+    static byte[] compress(final byte[] bytes, final byte[] presetDictionary) {
+        if (presetDictionary == null) {
+            return StringUtil.zipBytes(bytes);
+        }
+        return RawDeflate.compress(bytes, presetDictionary);
+    }
+
+    /**
+     * Fills all of bytes from zipBytes.
+     */
+    static void decompress(final byte[] zipBytes, final byte[] bytes,
+            final byte[] presetDictionary) throws IOException {
+        if (presetDictionary == null) {
+            StringUtil.unzipFully(zipBytes, bytes);
+        } else {
+            RawDeflate.decompress(zipBytes, bytes, presetDictionary);
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from a sample of htmlEntries: the pieces of
+     * markup and text that turn up in the most entries, with the most useful
+     * last, since Deflate codes short distances more cheaply.
+     *
+     * @return null if there's nothing worth sharing.
+     */
+    static byte[] trainPresetDictionary(final List<HtmlEntry> htmlEntries) {
+        final int step = Math.max(1, htmlEntries.size() / MAX_SAMPLE_ENTRIES);
+        final Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+        final Set<String> fragments = new HashSet<String>();
+        for (int i = 0; i < htmlEntries.size(); i += step) {
+            fragments.clear();
+            addFragments(htmlEntries.get(i).getHtml(), fragments);
+            for (final String fragment : fragments) {
+                final Integer count = entryCounts.get(fragment);
+                entryCounts.put(fragment, count == null ? 1 : count + 1);
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> candidates = new ArrayList<Map.Entry<String, Integer>>();
+        for (final Map.Entry<String, Integer> entry : entryCounts.entrySet()) {
+            if (entry.getValue() > 1) {
+                candidates.add(entry);
+            }
+        }
+        // Most bytes saved first; ties broken by the text so that the result
+        // doesn't depend on HashMap order.
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                final long scoreA = (long) a.getValue() * a.getKey().length();
+                final long scoreB = (long) b.getValue() * b.getKey().length();
+                if (scoreA != scoreB) {
+                    return scoreA > scoreB ? -1 : 1;
+                }
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        final List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (final Map.Entry<String, Integer> candidate : candidates) {
+            final byte[] bytes = utf8(candidate.getKey());
+            if (size + bytes.length > MAX_PRESET_SIZE) {
+                continue;
+            }
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        if (size == 0) {
+            return null;
+        }
+        final byte[] result = new byte[size];
+        int pos = size;
+        for (final byte[] bytes : chosen) {
+            pos -= bytes.length;
+            System.arraycopy(bytes, 0, result, pos, bytes.length);
+        }
+        return result;
+    }
+
+    /**
+     * Splits html into tags and the text between them.
+     */
+    private static void addFragments(final String html, final Set<String> fragments) {
+        int start = 0;
+        while (start < html.length()) {
+            int end;
+            if (html.charAt(start) == '<') {
+                end = html.indexOf('>', start);
+                end = end == -1 ? html.length() : end + 1;
+            } else {
+                end = html.indexOf('<', start);
+                end = end == -1 ? html.length() : end;
+            }
+            final int length = end - start;
+            if (length >= MIN_FRAGMENT_LENGTH && length <= MAX_FRAGMENT_LENGTH) {
+                fragments.add(html.substring(start, end));
+            }
+            start = end;
+        }
+    }
+
+    private static byte[] utf8(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
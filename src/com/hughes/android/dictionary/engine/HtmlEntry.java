@@ -5,14 +5,17 @@ import android.content.Intent;
 import android.util.Log;
 
 import com.hughes.android.dictionary.C;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
 import com.hughes.util.StringUtil;
-import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
 import java.lang.ref.SoftReference;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -31,21 +34,28 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         lazyHtmlLoader = null;
     }
 
-    public HtmlEntry(Dictionary dictionary, RandomAccessFile raf, final int index)
+    public HtmlEntry(Dictionary dictionary, DataInputBuffer in, final int index)
             throws IOException {
-        super(dictionary, raf, index);
-        title = raf.readUTF();
-        lazyHtmlLoader = new LazyHtmlLoader(raf);
+        super(dictionary, in, index);
+        title = in.readUTF();
+        lazyHtmlLoader = new LazyHtmlLoader(in, dictionary.htmlPresetDictionary);
         html = null;
     }
 
     @Override
-    public void write(RandomAccessFile raf) throws IOException {
+    void write(DataOutput raf) throws IOException {
+        write(raf, null);
+    }
+
+    /**
+     * @param presetDictionary what to compress against, or null to gzip.
+     */
+    void write(DataOutput raf, byte[] presetDictionary) throws IOException {
         super.write(raf);
         raf.writeUTF(title);
 
         final byte[] bytes = getHtml().getBytes("UTF-8");
-        final byte[] zipBytes = StringUtil.zipBytes(bytes);
+        final byte[] zipBytes = HtmlCompression.compress(bytes, presetDictionary);
         raf.writeInt(bytes.length);
         raf.writeInt(zipBytes.length);
         raf.write(zipBytes);
@@ -67,7 +77,7 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         return new Row(this.index, rowIndex, dictionaryIndex);
     }
 
-    static final class Serializer implements RAFListSerializer<HtmlEntry> {
+    static final class Serializer implements BufferListSerializer<HtmlEntry> {
 
         final Dictionary dictionary;
 
@@ -76,13 +86,8 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         }
 
         @Override
-        public HtmlEntry read(RandomAccessFile raf, final int index) throws IOException {
-            return new HtmlEntry(dictionary, raf, index);
-        }
-
-        @Override
-        public void write(RandomAccessFile raf, HtmlEntry t) throws IOException {
-            t.write(raf);
+        public HtmlEntry read(DataInputBuffer in, final int index) throws IOException {
+            return new HtmlEntry(dictionary, in, index);
         }
     };
 
@@ -109,7 +114,7 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
 
         boolean isExpanded = false;
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput raf, final int thisRowIndex,
                 final Index index) throws IOException {
             super(raf, thisRowIndex, index);
         }
@@ -145,7 +150,7 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
                 final Pattern orderedMatchPattern, final Transliterator normalizer,
                 final boolean swapPairEntries) {
             final String text = normalizer.transform(getRawText(false));
-            if (orderedMatchPattern.matcher(text).find()) {
+            if (orderedMatchPattern != null && orderedMatchPattern.matcher(text).find()) {
                 return RowMatchType.ORDERED_MATCH;
             }
             for (int i = searchTokens.size() - 1; i >= 0; --i) {
@@ -192,20 +197,23 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
     // --------------------------------------------------------------------
 
     public static final class LazyHtmlLoader {
-        final RandomAccessFile raf;
+        final ByteSource source;
         final long offset;
         final int numBytes;
         final int numZipBytes;
+        final byte[] presetDictionary;
 
         // Not sure this volatile is right, but oh well.
         volatile SoftReference<String> htmlRef = new SoftReference<String>(null);
 
-        private LazyHtmlLoader(final RandomAccessFile raf) throws IOException {
-            this.raf = raf;
-            numBytes = raf.readInt();
-            numZipBytes = raf.readInt();
-            offset = raf.getFilePointer();
-            raf.skipBytes(numZipBytes);
+        private LazyHtmlLoader(final DataInputBuffer in, final byte[] presetDictionary)
+                throws IOException {
+            this.source = in.getSource();
+            this.presetDictionary = presetDictionary;
+            numBytes = in.readInt();
+            numZipBytes = in.readInt();
+            offset = in.getFilePointer();
+            in.skipBytes(numZipBytes);
         }
 
         public String getHtml() {
@@ -217,16 +225,9 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
                     + numZipBytes);
             final byte[] bytes = new byte[numBytes];
             final byte[] zipBytes = new byte[numZipBytes];
-            synchronized (raf) {
-                try {
-                    raf.seek(offset);
-                    raf.read(zipBytes);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
             try {
-                StringUtil.unzipFully(zipBytes, bytes);
+                source.read(offset, numZipBytes).get(zipBytes);
+                HtmlCompression.decompress(zipBytes, bytes, presetDictionary);
                 html = new String(bytes, "UTF-8");
             } catch (IOException e) {
                 throw new RuntimeException(e);
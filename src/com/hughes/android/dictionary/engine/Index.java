@@ -21,35 +21,47 @@ package com.hughes.android.dictionary.engine;
 import com.hughes.android.dictionary.DictionaryInfo;
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
 import com.hughes.android.dictionary.engine.RowBase.RowKey;
+import com.hughes.android.util.BufferList;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.ParallelMap;
 import com.hughes.util.CachingList;
 import com.hughes.util.TransformingList;
 import com.hughes.util.raf.RAFList;
 import com.hughes.util.raf.RAFSerializable;
-import com.hughes.util.raf.RAFSerializer;
 import com.hughes.util.raf.SerializableSerializer;
 import com.hughes.util.raf.UniformRAFList;
 import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.RawCollationKey;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.EnumMap;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public final class Index implements RAFSerializable<Index> {
 
     static final int CACHE_SIZE = 5000;
+    // Posting lists of common tokens are long, so fewer of them are kept.
+    private static final int POSTING_LIST_CACHE_SIZE = 500;
+    private static final int NORMALIZED_TEXT_CACHE_SIZE = 2000;
 
     public final Dictionary dict;
 
@@ -65,6 +77,8 @@ public final class Index implements RAFSerializable<Index> {
 
     // persisted
     public final List<IndexEntry> sortedIndexEntries;
+    // Version 8: the same list, stored in front-coded blocks.
+    private final IndexEntryBlockList indexEntryBlocks;
 
     // persisted.
     public final Set<String> stoplist;
@@ -73,11 +87,58 @@ public final class Index implements RAFSerializable<Index> {
     // Various sub-types.
     // persisted
     public final List<RowBase> rows;
+    // The same list when read from a file, or null.
+    final RowTable rowTable;
     public final boolean swapPairEntries;
 
     // Version 2:
     int mainTokenCount = -1;
 
+    // Version 7: optional collation keys of each normalizedToken, so that
+    // lookups can binary search with byte comparisons.
+    private final List<byte[]> sortKeys;
+    private final String sortKeysCollatorVersion;
+    private volatile Boolean sortKeysUsable = null;
+    // Whether write() should compute and store sortKeys.
+    boolean writeSortKeys = true;
+
+    // Version 13: optional PostingLists, one per IndexEntry.
+    private final List<int[]> postingLists;
+    // Whether write() should compute and store postingLists. Off by default:
+    // searches only use them for phrasePositions, or when
+    // setPruneWithPostingLists is on.
+    boolean writePostingLists = false;
+    // Whether multiWordSearch may skip entries not in the postingLists of
+    // every search token. Off by default: it only finds tokens at the start
+    // of a word, where RowBase.matches finds them anywhere in the text.
+    private volatile boolean pruneWithPostingLists = false;
+
+    // Version 14: an optional SuffixArray of the normalizedTokens.
+    private final SuffixArray suffixArray;
+    // Whether write() should compute and store suffixArray. Off by default:
+    // it takes 4 bytes per char of normalizedToken.
+    boolean writeSuffixArray = false;
+
+    // Version 15: optional PhrasePositions, one per IndexEntry, alongside its
+    // posting list.
+    private final List<int[][]> phrasePositions;
+    // Whether write() should compute and store phrasePositions, which it only
+    // does with postingLists.
+    boolean writePhrasePositions = true;
+
+    // Normalized pair sides of recently searched PairEntries: successive
+    // searches while typing mostly look at the same entries.
+    private final NormalizedTextCache normalizedPairSides = new NormalizedTextCache(
+            NORMALIZED_TEXT_CACHE_SIZE);
+
+    // Copies of normalizer() for threads scanning rows in parallel.
+    private final List<Transliterator> spareNormalizers = new ArrayList<Transliterator>();
+
+    // The main-entry tokens, built the first time completions are asked for.
+    // Not under the Index's lock, which normalizer() needs meanwhile.
+    private volatile TokenTrie tokenTrie;
+    private final Object tokenTrieLock = new Object();
+
     // --------------------------------------------------------------------------
 
     public Index(final Dictionary dict, final String shortName, final String longName,
@@ -90,8 +151,15 @@ public final class Index implements RAFSerializable<Index> {
         this.normalizerRules = normalizerRules;
         this.swapPairEntries = swapPairEntries;
         sortedIndexEntries = new ArrayList<IndexEntry>();
+        indexEntryBlocks = null;
         this.stoplist = stoplist;
         rows = new ArrayList<RowBase>();
+        rowTable = null;
+        sortKeys = null;
+        sortKeysCollatorVersion = null;
+        postingLists = null;
+        suffixArray = null;
+        phrasePositions = null;
 
         normalizer = null;
     }
@@ -115,34 +183,149 @@ public final class Index implements RAFSerializable<Index> {
         return new NormalizeComparator(normalizer(), sortLanguage.getCollator());
     }
 
-    public Index(final Dictionary dict, final RandomAccessFile raf) throws IOException {
+    public Index(final Dictionary dict, final DataInputBuffer in) throws IOException {
         this.dict = dict;
-        shortName = raf.readUTF();
-        longName = raf.readUTF();
-        final String languageCode = raf.readUTF();
+        shortName = in.readUTF();
+        longName = in.readUTF();
+        final String languageCode = in.readUTF();
         sortLanguage = Language.lookup(languageCode);
-        normalizerRules = raf.readUTF();
-        swapPairEntries = raf.readBoolean();
+        normalizerRules = in.readUTF();
+        swapPairEntries = in.readBoolean();
         if (sortLanguage == null) {
             throw new IOException("Unsupported language: " + languageCode);
         }
         if (dict.dictFileVersion >= 2) {
-            mainTokenCount = raf.readInt();
+            mainTokenCount = in.readInt();
+        }
+        if (dict.dictFileVersion >= 8) {
+            indexEntryBlocks = new IndexEntryBlockList(this, in);
+            sortedIndexEntries = indexEntryBlocks;
+        } else {
+            indexEntryBlocks = null;
+            sortedIndexEntries = CachingList.create(
+                    BufferList.create(in, indexEntryBufferSerializer), CACHE_SIZE);
         }
-        sortedIndexEntries = CachingList.create(
-                RAFList.create(raf, indexEntrySerializer, raf.getFilePointer()), CACHE_SIZE);
         if (dict.dictFileVersion >= 4) {
-            stoplist = new SerializableSerializer<Set<String>>().read(raf);
+            stoplist = readStoplist(in);
         } else {
             stoplist = Collections.emptySet();
         }
-        rows = CachingList.create(
-                UniformRAFList.create(raf, new RowBase.Serializer(this), raf.getFilePointer()),
-                CACHE_SIZE);
+        // Not cached: rows are cheap to create, and RowTable keeps what they're
+        // made of.
+        rowTable = new RowTable(this, in);
+        rows = rowTable;
+        if (dict.dictFileVersion >= 7 && in.readBoolean()) {
+            sortKeysCollatorVersion = in.readUTF();
+            sortKeys = CachingList.create(BufferList.create(in, SORT_KEY_SERIALIZER),
+                    CACHE_SIZE);
+        } else {
+            sortKeysCollatorVersion = null;
+            sortKeys = null;
+        }
+        if (dict.dictFileVersion >= 13 && in.readBoolean()) {
+            postingLists = CachingList.create(BufferList.create(in, PostingLists.SERIALIZER),
+                    POSTING_LIST_CACHE_SIZE);
+        } else {
+            postingLists = null;
+        }
+        if (dict.dictFileVersion >= 14 && in.readBoolean()) {
+            suffixArray = new SuffixArray(in);
+        } else {
+            suffixArray = null;
+        }
+        if (dict.dictFileVersion >= 15 && in.readBoolean()) {
+            phrasePositions = CachingList.create(
+                    BufferList.create(in, PhrasePositions.SERIALIZER), POSTING_LIST_CACHE_SIZE);
+        } else {
+            phrasePositions = null;
+        }
+    }
+
+    /**
+     * Reads what SerializableSerializer wrote: a length, then that many bytes
+     * of Java serialization.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> readStoplist(final DataInputBuffer in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        final ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (Set<String>) objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            final IOException ioe = new IOException("Unable to read stoplist");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            objectIn.close();
+        }
+    }
+
+    /**
+     * The slow parts of write(), which don't depend on where they'll be
+     * written, so they can be computed on another thread.
+     */
+    static final class EncodedParts {
+        IndexEntryBlockList.Encoded indexEntryBlocks;
+        String sortKeysCollatorVersion;
+        List<byte[]> sortKeys;
+        List<byte[]> postingLists;
+        int[] suffixArray;
+        List<byte[]> phrasePositions;
+    }
+
+    EncodedParts encodeParts() throws IOException {
+        final EncodedParts parts = new EncodedParts();
+        if (dict.dictFileVersion >= 8) {
+            parts.indexEntryBlocks = IndexEntryBlockList.encode(sortedIndexEntries);
+        }
+        if (dict.dictFileVersion >= 7 && writeSortKeys) {
+            // getCollator() returns a new Collator, so this is thread-safe.
+            final Collator sortCollator = sortLanguage.getCollator();
+            final List<byte[]> keys = new ArrayList<byte[]>(sortedIndexEntries.size());
+            final RawCollationKey key = new RawCollationKey();
+            for (final IndexEntry indexEntry : sortedIndexEntries) {
+                sortCollator.getRawCollationKey(indexEntry.normalizedToken(), key);
+                final byte[] bytes = new byte[key.size];
+                System.arraycopy(key.bytes, 0, bytes, 0, key.size);
+                keys.add(bytes);
+            }
+            parts.sortKeysCollatorVersion = sortCollator.getVersion().toString();
+            parts.sortKeys = keys;
+        }
+        if (dict.dictFileVersion >= 13 && writePostingLists) {
+            final List<byte[]> lists = new ArrayList<byte[]>(sortedIndexEntries.size());
+            final boolean withPositions = dict.dictFileVersion >= 15 && writePhrasePositions;
+            final List<byte[]> positions = withPositions ? new ArrayList<byte[]>(
+                    sortedIndexEntries.size()) : null;
+            final Transliterator normalizer = borrowNormalizer();
+            try {
+                final PhrasePositions.Words words = new PhrasePositions.Words(this, normalizer);
+                for (final IndexEntry indexEntry : sortedIndexEntries) {
+                    final int[] ids = PostingLists.getIds(this, indexEntry);
+                    lists.add(PostingLists.encode(ids));
+                    if (withPositions) {
+                        positions.add(PhrasePositions.encode(indexEntry, ids, words));
+                    }
+                }
+            } finally {
+                returnNormalizer(normalizer);
+            }
+            parts.postingLists = lists;
+            parts.phrasePositions = positions;
+        }
+        if (dict.dictFileVersion >= 14 && writeSuffixArray) {
+            parts.suffixArray = SuffixArray.build(sortedIndexEntries);
+        }
+        return parts;
     }
 
     @Override
     public void write(final RandomAccessFile raf) throws IOException {
+        write(raf, encodeParts());
+    }
+
+    void write(final RandomAccessFile raf, final EncodedParts parts) throws IOException {
         raf.writeUTF(shortName);
         raf.writeUTF(longName);
         raf.writeUTF(sortLanguage.getIsoCode());
@@ -151,30 +334,79 @@ public final class Index implements RAFSerializable<Index> {
         if (dict.dictFileVersion >= 2) {
             raf.writeInt(mainTokenCount);
         }
-        RAFList.write(raf, sortedIndexEntries, indexEntrySerializer);
+        if (dict.dictFileVersion >= 8) {
+            IndexEntryBlockList.write(raf, parts.indexEntryBlocks);
+        } else {
+            BufferList.write(raf, sortedIndexEntries, INDEX_ENTRY_WRITER);
+        }
         new SerializableSerializer<Set<String>>().write(raf, stoplist);
         UniformRAFList.write(raf, (Collection<RowBase>) rows, new RowBase.Serializer(this), 5 /*
                                                                                                * bytes
                                                                                                * per
                                                                                                * entry
                                                                                                */);
+        if (dict.dictFileVersion >= 7) {
+            raf.writeBoolean(parts.sortKeys != null);
+            if (parts.sortKeys != null) {
+                raf.writeUTF(parts.sortKeysCollatorVersion);
+                BufferList.write(raf, parts.sortKeys, SORT_KEY_SERIALIZER);
+            }
+        }
+        if (dict.dictFileVersion >= 13) {
+            raf.writeBoolean(parts.postingLists != null);
+            if (parts.postingLists != null) {
+                BufferList.write(raf, parts.postingLists);
+            }
+        }
+        if (dict.dictFileVersion >= 14) {
+            raf.writeBoolean(parts.suffixArray != null);
+            if (parts.suffixArray != null) {
+                SuffixArray.write(raf, parts.suffixArray);
+            }
+        }
+        if (dict.dictFileVersion >= 15) {
+            raf.writeBoolean(parts.phrasePositions != null);
+            if (parts.phrasePositions != null) {
+                BufferList.write(raf, parts.phrasePositions);
+            }
+        }
+    }
+
+    private static final class SortKeySerializer implements BufferListSerializer<byte[]>,
+            BufferList.Writer<byte[]> {
+        @Override
+        public byte[] read(DataInputBuffer in, int readIndex) throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        @Override
+        public void write(RandomAccessFile raf, byte[] t) throws IOException {
+            raf.writeInt(t.length);
+            raf.write(t);
+        }
     }
 
+    private static final SortKeySerializer SORT_KEY_SERIALIZER = new SortKeySerializer();
+
     public void print(final PrintStream out) {
         for (final RowBase row : rows) {
             row.print(out);
         }
     }
 
-    private final RAFSerializer<IndexEntry> indexEntrySerializer = new RAFSerializer<IndexEntry>() {
+    private static final BufferList.Writer<IndexEntry> INDEX_ENTRY_WRITER = new BufferList.Writer<IndexEntry>() {
         @Override
-        public IndexEntry read(RandomAccessFile raf) throws IOException {
-            return new IndexEntry(Index.this, raf);
+        public void write(RandomAccessFile raf, IndexEntry t) throws IOException {
+            t.write(raf);
         }
+    };
 
+    private final BufferListSerializer<IndexEntry> indexEntryBufferSerializer = new BufferListSerializer<IndexEntry>() {
         @Override
-        public void write(RandomAccessFile raf, IndexEntry t) throws IOException {
-            t.write(raf);
+        public IndexEntry read(DataInputBuffer in, int readIndex) throws IOException {
+            return new IndexEntry(Index.this, in);
         }
     };
 
@@ -198,17 +430,26 @@ public final class Index implements RAFSerializable<Index> {
             this.htmlEntries = new ArrayList<HtmlEntry>();
         }
 
-        public IndexEntry(final Index index, final RandomAccessFile raf) throws IOException {
+        IndexEntry(final Index index, final String token, final String normalizedToken,
+                final int startRow, final int numRows, final List<HtmlEntry> htmlEntries) {
             this.index = index;
-            token = raf.readUTF();
-            startRow = raf.readInt();
-            numRows = raf.readInt();
-            final boolean hasNormalizedForm = raf.readBoolean();
-            normalizedToken = hasNormalizedForm ? raf.readUTF() : token;
+            this.token = token;
+            this.normalizedToken = normalizedToken;
+            this.startRow = startRow;
+            this.numRows = numRows;
+            this.htmlEntries = htmlEntries;
+        }
+
+        public IndexEntry(final Index index, final DataInputBuffer in) throws IOException {
+            this.index = index;
+            token = in.readUTF();
+            startRow = in.readInt();
+            numRows = in.readInt();
+            final boolean hasNormalizedForm = in.readBoolean();
+            normalizedToken = hasNormalizedForm ? in.readUTF() : token;
             if (index.dict.dictFileVersion >= 6) {
                 this.htmlEntries = CachingList.create(
-                        RAFList.create(raf, index.dict.htmlEntryIndexSerializer,
-                                raf.getFilePointer()), 1);
+                        BufferList.create(in, index.dict.htmlEntryIndexBufferSerializer), 1);
             } else {
                 this.htmlEntries = Collections.emptyList();
             }
@@ -258,20 +499,64 @@ public final class Index implements RAFSerializable<Index> {
     }
 
     public int findInsertionPointIndex(String token, final AtomicBoolean interrupted) {
-        token = normalizeToken(token);
+        return findNormalizedInsertionPointIndex(normalizeToken(token), interrupted);
+    }
 
+    private int findNormalizedInsertionPointIndex(final String token,
+            final AtomicBoolean interrupted) {
         int start = 0;
         int end = sortedIndexEntries.size();
 
+        final TokenComparator comparator = new TokenComparator(token);
+        if (indexEntryBlocks != null) {
+            // The block heads are in memory, and tell us which block to search.
+            final int block = indexEntryBlocks.findFirstBlockNotBefore(token,
+                    comparator.sortCollator);
+            start = Math.max(0, block - 1) * indexEntryBlocks.blockSize;
+            end = Math.min(end, block * indexEntryBlocks.blockSize);
+        }
+        return findInsertionPointIndex(comparator, start, end, interrupted);
+    }
+
+    /**
+     * Compares one normalized token against index entries, by sort key if we
+     * can, otherwise with the Collator.
+     */
+    private final class TokenComparator {
+        final String token;
         final Collator sortCollator = sortLanguage.getCollator();
+        final List<byte[]> sortKeys = getUsableSortKeys(sortCollator);
+        final RawCollationKey tokenKey;
+
+        TokenComparator(final String token) {
+            this.token = token;
+            tokenKey = sortKeys != null ? sortCollator.getRawCollationKey(token, null) : null;
+        }
+
+        /**
+         * @return how token compares to sortedIndexEntries.get(i).
+         */
+        int compareTo(final int i) {
+            if (tokenKey != null) {
+                return compareSortKeys(tokenKey, sortKeys.get(i));
+            }
+            return sortCollator.compare(token, sortedIndexEntries.get(i).normalizedToken());
+        }
+    }
+
+    /**
+     * Binary searches [start, end), which must hold the first entry not before
+     * the token, or end just before it.
+     */
+    private int findInsertionPointIndex(final TokenComparator comparator, int start, int end,
+            final AtomicBoolean interrupted) {
+        final String token = comparator.token;
         while (start < end) {
             final int mid = (start + end) / 2;
             if (interrupted.get()) {
                 return -1;
             }
-            final IndexEntry midEntry = sortedIndexEntries.get(mid);
-
-            final int comp = sortCollator.compare(token, midEntry.normalizedToken());
+            final int comp = comparator.compareTo(mid);
             if (comp == 0) {
                 final int result = windBackCase(token, mid, interrupted);
                 return result;
@@ -293,6 +578,32 @@ public final class Index implements RAFSerializable<Index> {
         return result;
     }
 
+    /**
+     * Sort keys are only comparable when made by the same collator version as
+     * the one we're running, otherwise we fall back to Collator.compare.
+     */
+    private List<byte[]> getUsableSortKeys(final Collator sortCollator) {
+        if (sortKeys == null) {
+            return null;
+        }
+        if (sortKeysUsable == null) {
+            final String collatorVersion = sortCollator.getVersion().toString();
+            sortKeysUsable = sortKeysCollatorVersion.equals(collatorVersion);
+        }
+        return sortKeysUsable ? sortKeys : null;
+    }
+
+    static int compareSortKeys(final RawCollationKey key, final byte[] other) {
+        final int length = Math.min(key.size, other.length);
+        for (int i = 0; i < length; ++i) {
+            final int diff = (key.bytes[i] & 0xff) - (other[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return key.size - other.length;
+    }
+
     private final int windBackCase(final String token, int result, final AtomicBoolean interrupted) {
         while (result > 0 && sortedIndexEntries.get(result - 1).normalizedToken().equals(token)) {
             --result;
@@ -303,50 +614,557 @@ public final class Index implements RAFSerializable<Index> {
         return result;
     }
 
+    // --------------------------------------------------------------------------
+
+    public SearchSession newSearchSession() {
+        return new SearchSession();
+    }
+
+    /**
+     * Does the same lookups as findInsertionPoint, but remembers where the
+     * last token went. When the next token just adds to the last one, as it
+     * does while someone is typing, only the entries from there on get
+     * searched. Anything else is searched from scratch.
+     */
+    public final class SearchSession {
+
+        private String lastToken = null;
+        // Where lastToken went. Not where the entries starting with it end:
+        // some collators put other entries among those.
+        private int lo;
+
+        private SearchSession() {
+        }
+
+        public Index getIndex() {
+            return Index.this;
+        }
+
+        public IndexEntry findInsertionPoint(final String token,
+                final AtomicBoolean interrupted) {
+            final int index = findInsertionPointIndex(token, interrupted);
+            return index != -1 ? sortedIndexEntries.get(index) : null;
+        }
+
+        public synchronized int findInsertionPointIndex(final String token,
+                final AtomicBoolean interrupted) {
+            final String normalizedToken = normalizeToken(token);
+            int result = -1;
+            if (lastToken != null && normalizedToken.startsWith(lastToken)) {
+                final TokenComparator comparator = new TokenComparator(normalizedToken);
+                // Collation rules don't promise that extending a token keeps
+                // it after lo, so check.
+                if (lo == 0 || comparator.compareTo(lo - 1) > 0) {
+                    result = Index.this.findInsertionPointIndex(comparator, lo,
+                            sortedIndexEntries.size(), interrupted);
+                }
+            }
+            if (result == -1 && !interrupted.get()) {
+                result = findNormalizedInsertionPointIndex(normalizedToken, interrupted);
+            }
+            if (result == -1 || interrupted.get()) {
+                lastToken = null;
+                return -1;
+            }
+            lastToken = normalizedToken;
+            lo = result;
+            return result;
+        }
+    }
+
+    /**
+     * @return the first entry at or after start that doesn't start with
+     *         prefix. Some collators put other entries among the ones that
+     *         do, so this walks rather than bisects: everything it skips
+     *         really does start with prefix.
+     */
+    private int findEndOfPrefix(final String prefix, final int start) {
+        final int size = sortedIndexEntries.size();
+        int end = start;
+        while (end < size && sortedIndexEntries.get(end).normalizedToken().startsWith(prefix)) {
+            ++end;
+        }
+        return end;
+    }
+
+    // --------------------------------------------------------------------------
+
+    public static final int MAX_FUZZY_DISTANCE = 2;
+
+    public static final class FuzzyMatch {
+        public final int indexEntryIndex;
+        public final IndexEntry indexEntry;
+        // Edits from the normalized search token to indexEntry's.
+        public final int distance;
+
+        FuzzyMatch(final int indexEntryIndex, final IndexEntry indexEntry, final int distance) {
+            this.indexEntryIndex = indexEntryIndex;
+            this.indexEntry = indexEntry;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return indexEntry.token + "(" + distance + ")";
+        }
+    }
+
+    /**
+     * Finds entries whose normalized tokens are within maxDistance edits of
+     * token's, for when there's no exact hit. Walks sortedIndexEntries in
+     * order through a LevenshteinAutomaton, reusing the states of the prefix
+     * each token shares with the one before, and skips every entry starting
+     * with a prefix the automaton has rejected.
+     *
+     * @param maxMillis how long to look; the best found by then are returned.
+     * @return up to maxResults matches, fewest edits first, then in index
+     *         order, or null if interrupted.
+     */
+    public List<FuzzyMatch> findFuzzy(final String token, final int maxDistance,
+            final int maxResults, final long maxMillis, final AtomicBoolean interrupted) {
+        if (maxDistance < 0 || maxDistance > MAX_FUZZY_DISTANCE) {
+            throw new IllegalArgumentException("maxDistance=" + maxDistance);
+        }
+        final long deadline = System.currentTimeMillis() + maxMillis;
+        final LevenshteinAutomaton automaton = new LevenshteinAutomaton(normalizeToken(token),
+                maxDistance);
+        final List<List<FuzzyMatch>> byDistance = new ArrayList<List<FuzzyMatch>>();
+        for (int d = 0; d <= maxDistance; ++d) {
+            byDistance.add(new ArrayList<FuzzyMatch>());
+        }
+
+        // states[j] is the state after the first j chars of lastToken, or -1
+        // in the middle of a code point.
+        int[] states = new int[16];
+        String lastToken = "";
+        int lastComputed = 0;
+        states[0] = LevenshteinAutomaton.START;
+
+        int index = 0;
+        int visited = 0;
+        while (index < sortedIndexEntries.size()) {
+            if ((++visited & 63) == 0
+                    && (interrupted.get() || System.currentTimeMillis() > deadline)) {
+                break;
+            }
+            final IndexEntry indexEntry = sortedIndexEntries.get(index);
+            final String normalizedToken = indexEntry.normalizedToken();
+            if (states.length < normalizedToken.length() + 1) {
+                states = Arrays.copyOf(states, 2 * normalizedToken.length() + 1);
+            }
+            int j = 0;
+            final int shared = Math.min(lastComputed,
+                    Math.min(lastToken.length(), normalizedToken.length()));
+            while (j < shared && lastToken.charAt(j) == normalizedToken.charAt(j)) {
+                ++j;
+            }
+            while (states[j] == -1) {
+                --j;
+            }
+
+            int state = states[j];
+            boolean alive = true;
+            while (j < normalizedToken.length()) {
+                final int codePoint = normalizedToken.codePointAt(j);
+                final int next = j + Character.charCount(codePoint);
+                for (int k = j + 1; k < next; ++k) {
+                    states[k] = -1;
+                }
+                state = automaton.step(state, codePoint);
+                j = next;
+                states[j] = state;
+                if (!automaton.isAlive(state)) {
+                    alive = false;
+                    break;
+                }
+            }
+            lastToken = normalizedToken;
+            lastComputed = j;
+
+            if (!alive) {
+                // Nothing starting with this can match, so skip the entries
+                // that do; any past one that doesn't still get checked.
+                index = findEndOfPrefix(normalizedToken.substring(0, j), index);
+                continue;
+            }
+            final int distance = automaton.getDistance(state);
+            if (distance <= maxDistance && byDistance.get(distance).size() < maxResults) {
+                byDistance.get(distance).add(new FuzzyMatch(index, indexEntry, distance));
+            }
+            ++index;
+        }
+        if (interrupted.get()) {
+            return null;
+        }
+
+        final List<FuzzyMatch> result = new ArrayList<FuzzyMatch>();
+        for (final List<FuzzyMatch> matches : byDistance) {
+            for (final FuzzyMatch match : matches) {
+                if (result.size() < maxResults) {
+                    result.add(match);
+                }
+            }
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------
+
+    public static final class Completion {
+        public final String token;
+        public final int indexEntryIndex;
+        public final int numRows;
+
+        Completion(final String token, final int indexEntryIndex, final int numRows) {
+            this.token = token;
+            this.indexEntryIndex = indexEntryIndex;
+            this.numRows = numRows;
+        }
+
+        @Override
+        public String toString() {
+            return token + "(" + numRows + ")";
+        }
+    }
+
+    /**
+     * Completes what's being typed from the tokens that have a main entry,
+     * out of a TokenTrie held in memory. The first call builds it, reading
+     * every IndexEntry once; see prepareCompletions.
+     *
+     * @return up to maxResults tokens starting with prefix, most rows first,
+     *         then in normalized order.
+     */
+    public List<Completion> findCompletions(final String prefix, final int maxResults) {
+        return getTokenTrie().complete(normalizeToken(prefix), maxResults);
+    }
+
+    /**
+     * Builds what findCompletions needs, if it isn't built yet: call it on a
+     * background thread so that the first completion is quick too.
+     */
+    public void prepareCompletions() {
+        getTokenTrie();
+    }
+
+    private TokenTrie getTokenTrie() {
+        TokenTrie result = tokenTrie;
+        if (result == null) {
+            synchronized (tokenTrieLock) {
+                result = tokenTrie;
+                if (result == null) {
+                    result = TokenTrie.build(this);
+                    tokenTrie = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------
+
+    public boolean hasSuffixArray() {
+        return suffixArray != null;
+    }
+
+    /**
+     * @return the sorted indices of the entries whose normalizedTokens contain
+     *         text's, at most maxResults of them (the first found, which
+     *         aren't necessarily the first in the index), or null if there's
+     *         no suffix array or if interrupted.
+     */
+    public int[] findContaining(final String text, final int maxResults,
+            final AtomicBoolean interrupted) {
+        return findSuffixes(normalizeToken(text), false, maxResults, interrupted);
+    }
+
+    /**
+     * Like findContaining, but for the entries whose normalizedTokens end with
+     * text's.
+     */
+    public int[] findEndingWith(final String text, final int maxResults,
+            final AtomicBoolean interrupted) {
+        return findSuffixes(normalizeToken(text), true, maxResults, interrupted);
+    }
+
+    int[] findSuffixes(final String normalizedText, final boolean whole, final int maxResults,
+            final AtomicBoolean interrupted) {
+        if (suffixArray == null) {
+            return null;
+        }
+        final int[] range = suffixArray.findRange(sortedIndexEntries, normalizedText, whole);
+        final Set<Integer> entryIndices = new HashSet<Integer>();
+        for (int i = range[0]; i < range[1] && entryIndices.size() < maxResults; ++i) {
+            if ((i & 255) == 0 && interrupted.get()) {
+                return null;
+            }
+            entryIndices.add(SuffixArray.getEntryIndex(suffixArray.getSuffix(i)));
+        }
+        if (interrupted.get()) {
+            return null;
+        }
+        final int[] result = new int[entryIndices.size()];
+        int i = 0;
+        for (final Integer entryIndex : entryIndices) {
+            result[i++] = entryIndex;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    // --------------------------------------------------------------------------
+
+    /**
+     * Finds the entries whose normalizedTokens match pattern, where '*'
+     * matches any text and '?' any one character. Only the entries starting
+     * with the text before the first wildcard get scanned. With a leading
+     * wildcard, the suffix array (if there is one) gives the entries
+     * containing the longest piece of text instead.
+     *
+     * @return the sorted indices of the first maxResults matching entries,
+     *         or null if interrupted.
+     */
+    public int[] findMatching(final String pattern, final int maxResults,
+            final AtomicBoolean interrupted) {
+        // Normalize the text between the wildcards, which the normalizer might
+        // otherwise mangle.
+        final List<String> pieces = new ArrayList<String>();
+        final StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i <= pattern.length(); ++i) {
+            final char c = i < pattern.length() ? pattern.charAt(i) : '*';
+            if (c == '*' || c == '?') {
+                final String piece = i > start ? normalizeToken(pattern.substring(start, i))
+                        : "";
+                pieces.add(piece);
+                if (piece.length() > 0) {
+                    regex.append(Pattern.quote(piece));
+                }
+                if (i < pattern.length()) {
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                start = i + 1;
+            }
+        }
+        final Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        final String prefix = pieces.get(0);
+
+        int[] candidates = null;
+        int begin = 0;
+        int end = sortedIndexEntries.size();
+        if (prefix.length() > 0) {
+            begin = findNormalizedInsertionPointIndex(prefix, interrupted);
+            if (begin == -1) {
+                return null;
+            }
+            end = findEndOfPrefix(prefix, begin);
+        } else if (suffixArray != null) {
+            int longest = 0;
+            for (int i = 1; i < pieces.size(); ++i) {
+                if (pieces.get(i).length() > pieces.get(longest).length()) {
+                    longest = i;
+                }
+            }
+            if (pieces.get(longest).length() > 0) {
+                // Only an entry that contains the text can match; if it's at
+                // the very end, only one that ends with it.
+                final boolean atEnd = longest == pieces.size() - 1;
+                candidates = findSuffixes(pieces.get(longest), atEnd, Integer.MAX_VALUE,
+                        interrupted);
+                if (candidates == null) {
+                    return null;
+                }
+                end = candidates.length;
+            }
+        }
+
+        int[] result = new int[Math.min(maxResults, 16)];
+        int count = 0;
+        for (int i = begin; i < end && count < maxResults; ++i) {
+            if ((i & 63) == 0 && interrupted.get()) {
+                return null;
+            }
+            final int entryIndex = candidates != null ? candidates[i] : i;
+            if (compiled.matcher(sortedIndexEntries.get(entryIndex).normalizedToken())
+                    .matches()) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, (int) Math.min(maxResults, 2L * count));
+                }
+                result[count++] = entryIndex;
+            }
+        }
+        if (interrupted.get()) {
+            return null;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
     public IndexInfo getIndexInfo() {
         return new DictionaryInfo.IndexInfo(shortName, sortedIndexEntries.size(), mainTokenCount);
     }
 
     private static final int MAX_SEARCH_ROWS = 1000;
 
-    private final Map<String, Integer> prefixToNumRows = new LinkedHashMap<String, Integer>();
+    // How many posting lists a search token may merge before it's cheaper to
+    // check its rows with RowBase.matches.
+    private static final int MAX_POSTING_LISTS_PER_TOKEN = 64;
+
+    // About how many rows multiWordSearch matches per task when scanning in
+    // parallel.
+    private static final int SCAN_CHUNK_ROWS = 64;
 
-    private synchronized final int getUpperBoundOnRowsStartingWith(final String normalizedPrefix,
-            final int maxRows, final AtomicBoolean interrupted) {
-        final Integer numRows = prefixToNumRows.get(normalizedPrefix);
-        if (numRows != null) {
-            return numRows;
+    // A SearchListener gets the matches found so far when there are this many,
+    // or when it's been this long since the last batch.
+    private static final int STREAM_BATCH_ROWS = 64;
+    private static final long STREAM_BATCH_MILLIS = 100;
+
+    private static final int PREFIX_RANGE_CACHE_SIZE = 256;
+
+    private final PrefixRangeCache prefixRangeCache = new PrefixRangeCache(
+            PREFIX_RANGE_CACHE_SIZE);
+
+    public PrefixRangeCache getPrefixRangeCache() {
+        return prefixRangeCache;
+    }
+
+    /**
+     * @return the entries starting with normalizedPrefix, counting rows only
+     *         until there are more than maxRows or context runs out of time,
+     *         or null if interrupted.
+     */
+    private PrefixRangeCache.Range getPrefixRange(final String normalizedPrefix,
+            final int maxRows, final SearchContext context) {
+        final PrefixRangeCache.Range cached = prefixRangeCache.get(normalizedPrefix);
+        if (cached != null) {
+            return cached;
+        }
+        final int insertionPointIndex = findInsertionPointIndex(normalizedPrefix,
+                context.interrupted);
+        if (insertionPointIndex == -1) {
+            return null;
         }
-        final int insertionPointIndex = findInsertionPointIndex(normalizedPrefix, interrupted);
 
         int rowCount = 0;
-        for (int index = insertionPointIndex; index < sortedIndexEntries.size(); ++index) {
-            if (interrupted.get()) {
-                return -1;
+        int index = insertionPointIndex;
+        boolean complete = true;
+        while (index < sortedIndexEntries.size()) {
+            if (context.shouldStop()) {
+                if (context.isInterrupted()) {
+                    return null;
+                }
+                // Out of time: a partial count, not worth caching.
+                return new PrefixRangeCache.Range(insertionPointIndex, index, rowCount, false);
             }
             final IndexEntry indexEntry = sortedIndexEntries.get(index);
             if (!indexEntry.normalizedToken.startsWith(normalizedPrefix)) {
                 break;
             }
             rowCount += indexEntry.numRows + indexEntry.htmlEntries.size();
+            ++index;
             if (rowCount > maxRows) {
                 System.out.println("Giving up, too many words with prefix: " + normalizedPrefix);
+                complete = false;
                 break;
             }
         }
-        prefixToNumRows.put(normalizedPrefix, numRows);
-        return rowCount;
+        final PrefixRangeCache.Range range = new PrefixRangeCache.Range(insertionPointIndex,
+                index, rowCount, complete);
+        prefixRangeCache.put(normalizedPrefix, range);
+        return range;
     }
 
     public final List<RowBase> multiWordSearch(
             final String searchText, final List<String> searchTokens,
             final AtomicBoolean interrupted) {
+        return multiWordSearch(searchText, searchTokens, new SearchContext(interrupted),
+                Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Told about the rows of a multiWordSearch as they're found, on the
+     * searching thread: first the TITLE_MATCH, as soon as it's known, then
+     * batches of the other matches while the rest of the index is scanned.
+     * Those come in index order rather than ranked, and may go past
+     * maxResults: what multiWordSearch returns is the ranked result. Nothing
+     * more is sent once the search is interrupted.
+     */
+    public interface SearchListener {
+        void onRows(RowMatchType matchType, List<RowBase> rows);
+    }
+
+    /**
+     * Hands matches to a SearchListener a batch at a time while the scan goes
+     * on, so it doesn't have to wait for all of them.
+     */
+    private static final class RowStream {
+        private final SearchListener listener;
+        private final AtomicBoolean interrupted;
+        // By RowMatchType ordinal.
+        private final List<List<RowBase>> pending = new ArrayList<List<RowBase>>();
+        private int pendingCount = 0;
+        private long lastBatchMillis = 0;
+
+        RowStream(final SearchListener listener, final AtomicBoolean interrupted) {
+            this.listener = listener;
+            this.interrupted = interrupted;
+            for (int i = 0; i < RowMatchType.values().length; ++i) {
+                pending.add(new ArrayList<RowBase>());
+            }
+        }
+
+        void add(final RowMatch match) {
+            pending.get(match.matchType.ordinal()).add(match.row);
+            ++pendingCount;
+        }
+
+        /**
+         * Sends what's pending if there's enough of it, or it's been waiting
+         * long enough. Called between IndexEntries.
+         */
+        void endOfEntry() {
+            if (pendingCount > 0 && (pendingCount >= STREAM_BATCH_ROWS
+                    || System.currentTimeMillis() - lastBatchMillis >= STREAM_BATCH_MILLIS)) {
+                flush();
+            }
+        }
+
+        void flush() {
+            for (final RowMatchType matchType : RowMatchType.values()) {
+                final List<RowBase> rows = pending.get(matchType.ordinal());
+                if (!rows.isEmpty() && !interrupted.get()) {
+                    listener.onRows(matchType, Collections.unmodifiableList(rows));
+                    pending.set(matchType.ordinal(), new ArrayList<RowBase>());
+                }
+            }
+            pendingCount = 0;
+            lastBatchMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Like multiWordSearch(searchText, searchTokens, interrupted), with more
+     * say in how the search goes.
+     *
+     * @param context when to stop: if it runs out of time, this returns the
+     *            best rows found so far, and context.isTruncated() is true.
+     * @param maxResults how many of the best rows to keep.
+     * @param executor where to match rows, for a result that's the same, or
+     *            null to match them on this thread.
+     * @param listener told about the rows as they're found, or null.
+     * @return null if context is interrupted.
+     */
+    public final List<RowBase> multiWordSearch(
+            final String searchText, final List<String> searchTokens,
+            final SearchContext context, final int maxResults,
+            final ExecutorService executor, final SearchListener listener) {
+        final AtomicBoolean interrupted = context.interrupted;
         final long startMills = System.currentTimeMillis();
-        final List<RowBase> result = new ArrayList<RowBase>();
 
         final Set<String> normalizedNonStoplist = new LinkedHashSet<String>();
+        final List<PrefixRangeCache.Range> nonStoplistRanges = new ArrayList<PrefixRangeCache.Range>();
 
         String bestPrefix = null;
+        PrefixRangeCache.Range bestRange = null;
         int leastRows = Integer.MAX_VALUE;
         final StringBuilder searchTokensRegex = new StringBuilder();
         for (int i = 0; i < searchTokens.size(); ++i) {
@@ -360,15 +1178,19 @@ public final class Index implements RAFSerializable<Index> {
 
             if (!stoplist.contains(searchToken)) {
                 if (normalizedNonStoplist.add(normalized)) {
-                    final int numRows = getUpperBoundOnRowsStartingWith(normalized,
-                            MAX_SEARCH_ROWS, interrupted);
-                    if (numRows != -1 && numRows < leastRows) {
-                        if (numRows == 0) {
+                    final PrefixRangeCache.Range range = getPrefixRange(normalized,
+                            MAX_SEARCH_ROWS, context);
+                    if (range != null) {
+                        nonStoplistRanges.add(range);
+                    }
+                    if (range != null && range.rowCount < leastRows) {
+                        if (range.rowCount == 0 && range.complete) {
                             // We really are done here.
                             return Collections.emptyList();
                         }
-                        leastRows = numRows;
+                        leastRows = range.rowCount;
                         bestPrefix = normalized;
+                        bestRange = range;
                     }
                 }
             }
@@ -388,13 +1210,7 @@ public final class Index implements RAFSerializable<Index> {
                 + ", searchTokens=" + searchTokens);
 
         // Place to store the things that match.
-        final Map<RowMatchType, List<RowBase>> matches = new EnumMap<RowMatchType, List<RowBase>>(
-                RowMatchType.class);
-        for (final RowMatchType rowMatchType : RowMatchType.values()) {
-            if (rowMatchType != RowMatchType.NO_MATCH) {
-                matches.put(rowMatchType, new ArrayList<RowBase>());
-            }
-        }
+        final TopRows matches = new TopRows(maxResults);
 
         int matchCount = 0;
 
@@ -402,61 +1218,422 @@ public final class Index implements RAFSerializable<Index> {
         if (exactMatchIndex != -1) {
             final IndexEntry exactMatch = sortedIndexEntries.get(exactMatchIndex);
             if (pattern.matcher(exactMatch.token).find()) {
-                matches.get(RowMatchType.TITLE_MATCH).add(rows.get(exactMatch.startRow));
+                final RowBase row = rows.get(exactMatch.startRow);
+                matches.add(RowMatchType.TITLE_MATCH, row, row.getSideLength(swapPairEntries));
+                // It's first whatever else turns up.
+                if (listener != null && maxResults > 0 && !interrupted.get()) {
+                    listener.onRows(RowMatchType.TITLE_MATCH, Collections.singletonList(row));
+                }
             }
         }
 
         final String searchToken = bestPrefix;
-        final int insertionPointIndex = findInsertionPointIndex(searchToken, interrupted);
+        final int insertionPointIndex;
+        final int endIndex;
+        if (bestRange != null) {
+            insertionPointIndex = bestRange.start;
+            endIndex = bestRange.complete ? bestRange.end : sortedIndexEntries.size();
+        } else {
+            insertionPointIndex = findInsertionPointIndex(searchToken, interrupted);
+            endIndex = sortedIndexEntries.size();
+        }
+        if (insertionPointIndex == -1) {
+            return null;
+        }
+        final int[] candidateIds = findCandidateIds(nonStoplistRanges, context);
+        final int[] phraseIds = findPhraseIds(searchTokens, candidateIds, context);
+        if (interrupted.get()) {
+            return null;
+        }
         final Set<RowKey> rowsAlreadySeen = new HashSet<RowBase.RowKey>();
-        for (int index = insertionPointIndex; index < sortedIndexEntries.size()
-                && matchCount < MAX_SEARCH_ROWS; ++index) {
-            if (interrupted.get()) {
+        final RowStream stream = listener != null ? new RowStream(listener, interrupted) : null;
+        if (executor != null) {
+            matchCount = scanInParallel(executor, searchToken, insertionPointIndex, endIndex,
+                    candidateIds, phraseIds, searchTokens, pattern, rowsAlreadySeen, matches,
+                    matchCount, stream, context);
+            if (matchCount == -1) {
                 return null;
             }
-            final IndexEntry indexEntry = sortedIndexEntries.get(index);
-            if (!indexEntry.normalizedToken.startsWith(searchToken)) {
-                break;
+        } else {
+            final List<RowMatch> entryMatches = new ArrayList<RowMatch>();
+            for (int index = insertionPointIndex; index < endIndex
+                    && matchCount < MAX_SEARCH_ROWS; ++index) {
+                final IndexEntry indexEntry = sortedIndexEntries.get(index);
+                if (!indexEntry.normalizedToken.startsWith(searchToken)) {
+                    break;
+                }
+                final boolean finished = matchRows(indexEntry, candidateIds, phraseIds,
+                        searchTokens, pattern, normalizer(), rowsAlreadySeen, entryMatches,
+                        context);
+                if (!finished && context.isInterrupted()) {
+                    return null;
+                }
+                for (final RowMatch match : entryMatches) {
+                    matches.add(match.matchType, match.row, match.sideLength);
+                    ++matchCount;
+                    if (stream != null) {
+                        stream.add(match);
+                    }
+                }
+                entryMatches.clear();
+                if (stream != null) {
+                    stream.endOfEntry();
+                }
+                if (!finished) {
+                    // Out of time: keep what we have.
+                    break;
+                }
             }
+        }
+        // } // searchTokens
+
+        if (stream != null) {
+            stream.flush();
+        }
+
+        // Sorted into a reasonable order.
+        final List<RowBase> result = matches.removeAll();
 
-            // System.out.println("Searching indexEntry: " + indexEntry.token);
+        System.out.println("searchDuration: " + (System.currentTimeMillis() - startMills));
+        return result;
+    }
+
+    /**
+     * Lets multiWordSearch use the posting lists, if there are any, to skip
+     * rows where a search token doesn't start a word, rather than matching
+     * them. Faster, but it loses rows where a token is only found inside a
+     * word, or across two.
+     */
+    public void setPruneWithPostingLists(final boolean pruneWithPostingLists) {
+        this.pruneWithPostingLists = pruneWithPostingLists;
+    }
+
+    /**
+     * Intersects, for each search token, the union of the posting lists of the
+     * IndexEntries it's a prefix of. The rarest go first, so the candidates
+     * shrink as fast as they can. Tokens that are a prefix of too many
+     * entries aren't worth merging and are left to RowBase.matches.
+     *
+     * @return the sorted ids of the entries that can match, or null if any
+     *         entry can (or if context says to stop, or pruning isn't on).
+     */
+    private int[] findCandidateIds(final List<PrefixRangeCache.Range> ranges,
+            final SearchContext context) {
+        if (postingLists == null || !pruneWithPostingLists) {
+            return null;
+        }
+        final List<int[]> tokenIds = new ArrayList<int[]>(ranges.size());
+        for (final PrefixRangeCache.Range range : ranges) {
+            if (!range.complete || range.end - range.start > MAX_POSTING_LISTS_PER_TOKEN) {
+                continue;
+            }
+            final List<int[]> lists = new ArrayList<int[]>(range.end - range.start);
+            for (int i = range.start; i < range.end; ++i) {
+                if (context.shouldStop()) {
+                    return null;
+                }
+                lists.add(postingLists.get(i));
+            }
+            tokenIds.add(PostingLists.union(lists));
+        }
+        if (tokenIds.isEmpty()) {
+            return null;
+        }
+        Collections.sort(tokenIds, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a.length - b.length;
+            }
+        });
+        int[] result = tokenIds.get(0);
+        for (int i = 1; i < tokenIds.size() && result.length > 0; ++i) {
+            result = PostingLists.intersect(result, tokenIds.get(i));
+        }
+        return result;
+    }
 
-            // Extra +1 to skip token row.
-            for (int rowIndex = indexEntry.startRow + 1; rowIndex < indexEntry.startRow + 1
-                    + indexEntry.numRows
-                    && rowIndex < rows.size(); ++rowIndex) {
-                if (interrupted.get()) {
+    /**
+     * Finds the PairEntries where the search tokens are consecutive words of
+     * a side, the last of them maybe cut short, by following each token's
+     * phrasePositions on to the next token's. These are certain to be
+     * ORDERED_MATCHes, but not the only ones: the pattern also finds tokens
+     * inside words, and in entries not indexed under every token.
+     *
+     * @param candidateIds if not null, the only ids worth looking at.
+     * @return the sorted ids of those entries, or null if phrasePositions
+     *         can't tell: when there are none, when the last token starts too
+     *         many IndexEntries, or when context says to stop.
+     */
+    private int[] findPhraseIds(final List<String> normalizedTokens, final int[] candidateIds,
+            final SearchContext context) {
+        if (phrasePositions == null || normalizedTokens.isEmpty()) {
+            return null;
+        }
+        long[] phrases = null;
+        for (int i = 0; i < normalizedTokens.size(); ++i) {
+            final String token = normalizedTokens.get(i);
+            final int start;
+            final int end;
+            if (i == normalizedTokens.size() - 1) {
+                // Still being typed.
+                final PrefixRangeCache.Range range = getPrefixRange(token, MAX_SEARCH_ROWS,
+                        context);
+                if (range == null || !range.complete
+                        || range.end - range.start > MAX_POSTING_LISTS_PER_TOKEN) {
                     return null;
                 }
-                final RowBase row = rows.get(rowIndex);
-                final RowBase.RowKey rowKey = row.getRowKey();
-                if (rowsAlreadySeen.contains(rowKey)) {
-                    continue;
+                start = range.start;
+                end = range.end;
+            } else {
+                start = findNormalizedInsertionPointIndex(token, context.interrupted);
+                if (start == -1) {
+                    return null;
                 }
-                rowsAlreadySeen.add(rowKey);
-                final RowMatchType matchType = row.matches(searchTokens, pattern, normalizer(),
-                        swapPairEntries);
-                if (matchType != RowMatchType.NO_MATCH) {
-                    matches.get(matchType).add(row);
-                    ++matchCount;
+                int exactEnd = start;
+                while (exactEnd < sortedIndexEntries.size()
+                        && sortedIndexEntries.get(exactEnd).normalizedToken().equals(token)) {
+                    ++exactEnd;
+                }
+                end = exactEnd;
+            }
+            final List<long[]> words = new ArrayList<long[]>(end - start);
+            for (int index = start; index < end; ++index) {
+                if (context.shouldStop()) {
+                    return null;
                 }
+                words.add(PhrasePositions.join(postingLists.get(index),
+                        phrasePositions.get(index), candidateIds));
+            }
+            final long[] tokenWords = PhrasePositions.union(words);
+            phrases = phrases == null ? tokenWords : PhrasePositions.followedBy(phrases,
+                    tokenWords);
+            if (phrases.length == 0) {
+                break;
             }
         }
-        // } // searchTokens
+        return PhrasePositions.getIds(phrases);
+    }
 
-        // Sort them into a reasonable order.
-        final RowBase.LengthComparator lengthComparator = new RowBase.LengthComparator(
-                swapPairEntries);
-        for (final Collection<RowBase> rows : matches.values()) {
-            final List<RowBase> ordered = new ArrayList<RowBase>(rows);
-            Collections.sort(ordered, lengthComparator);
-            result.addAll(ordered);
+    /**
+     * @return the side of each Pair of a PairEntry as normalized for
+     *         searching, only running normalizer if they aren't cached.
+     */
+    String[] getNormalizedPairSides(final int pairEntryIndex, final Transliterator normalizer,
+            final boolean swapPairEntries) {
+        if (swapPairEntries != this.swapPairEntries) {
+            // Not the side this Index caches.
+            return normalizePairSides(pairEntryIndex, normalizer, swapPairEntries);
+        }
+        String[] result = normalizedPairSides.get(pairEntryIndex);
+        if (result == null) {
+            result = normalizePairSides(pairEntryIndex, normalizer, swapPairEntries);
+            normalizedPairSides.put(pairEntryIndex, result);
         }
+        return result;
+    }
 
-        System.out.println("searchDuration: " + (System.currentTimeMillis() - startMills));
+    private String[] normalizePairSides(final int pairEntryIndex,
+            final Transliterator normalizer, final boolean swapPairEntries) {
+        final int side = swapPairEntries ? 1 : 0;
+        final List<PairEntry.Pair> pairs = dict.pairEntries.get(pairEntryIndex).pairs;
+        final String[] result = new String[pairs.size()];
+        for (int i = 0; i < pairs.size(); ++i) {
+            result[i] = normalizer.transform(pairs.get(i).get(side));
+        }
         return result;
     }
 
+    private static final class RowMatch {
+        final RowKey rowKey;
+        final RowBase row;
+        final RowMatchType matchType;
+        final int sideLength;
+
+        RowMatch(final RowKey rowKey, final RowBase row, final RowMatchType matchType,
+                final int sideLength) {
+            this.rowKey = rowKey;
+            this.row = row;
+            this.matchType = matchType;
+            this.sideLength = sideLength;
+        }
+    }
+
+    /**
+     * Matches the rows of indexEntry that aren't in rowsSeen, adding them to
+     * it, and adds those that match to out. PairEntries in phraseIds are
+     * ORDERED_MATCHes without looking at their text; everything else goes
+     * through row.matches with the pattern, since phraseIds can miss some.
+     *
+     * @return false if context said to stop before the last row.
+     */
+    private boolean matchRows(final IndexEntry indexEntry, final int[] candidateIds,
+            final int[] phraseIds, final List<String> searchTokens, final Pattern pattern,
+            final Transliterator normalizer, final Set<RowKey> rowsSeen,
+            final List<RowMatch> out, final SearchContext context) {
+        // Extra +1 to skip token row.
+        for (int rowIndex = indexEntry.startRow + 1; rowIndex < indexEntry.startRow + 1
+                + indexEntry.numRows
+                && rowIndex < rows.size(); ++rowIndex) {
+            if (context.shouldStop()) {
+                return false;
+            }
+            final int id = candidateIds != null || phraseIds != null
+                    ? PostingLists.getId(this, rowIndex) : -1;
+            if (candidateIds != null && Arrays.binarySearch(candidateIds, id) < 0) {
+                continue;
+            }
+            final RowBase.RowKey rowKey = rowTable != null ? rowTable.getRowKey(rowIndex)
+                    : rows.get(rowIndex).getRowKey();
+            if (!rowsSeen.add(rowKey)) {
+                continue;
+            }
+            final RowBase row = rows.get(rowIndex);
+            final RowMatchType matchType;
+            if (phraseIds != null && PostingLists.getPairEntryIndex(id) != -1
+                    && Arrays.binarySearch(phraseIds, id) >= 0) {
+                matchType = RowMatchType.ORDERED_MATCH;
+            } else {
+                matchType = row.matches(searchTokens, pattern, normalizer, swapPairEntries);
+            }
+            if (matchType != RowMatchType.NO_MATCH) {
+                out.add(new RowMatch(rowKey, row, matchType, row.getSideLength(swapPairEntries)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The serial scan in multiWordSearch, split up: this thread walks the
+     * IndexEntries starting with searchToken and hands them to executor in
+     * chunks of about SCAN_CHUNK_ROWS rows, a wave of chunks at a time. The
+     * matches are merged back in IndexEntry order, stopping where the serial
+     * scan would, so the result is the same. Out of time, it keeps the chunks
+     * that finished before the first that didn't.
+     *
+     * @return the new matchCount, or -1 if interrupted.
+     */
+    private int scanInParallel(final ExecutorService executor, final String searchToken,
+            final int start, final int end, final int[] candidateIds, final int[] phraseIds,
+            final List<String> searchTokens, final Pattern pattern,
+            final Set<RowKey> rowsAlreadySeen, final TopRows matches, int matchCount,
+            final RowStream stream, final SearchContext context) {
+        final int chunksPerWave = Runtime.getRuntime().availableProcessors();
+        int index = start;
+        boolean more = true;
+        while (more && matchCount < MAX_SEARCH_ROWS) {
+            if (context.shouldStop()) {
+                return context.isInterrupted() ? -1 : matchCount;
+            }
+            final List<Future<List<List<RowMatch>>>> futures = new ArrayList<Future<List<List<RowMatch>>>>();
+            try {
+                for (int chunk = 0; chunk < chunksPerWave && more; ++chunk) {
+                    final int chunkStart = index;
+                    int chunkRows = 0;
+                    while (chunkRows < SCAN_CHUNK_ROWS) {
+                        if (index >= end
+                                || !sortedIndexEntries.get(index).normalizedToken
+                                        .startsWith(searchToken)) {
+                            more = false;
+                            break;
+                        }
+                        chunkRows += sortedIndexEntries.get(index).numRows;
+                        ++index;
+                    }
+                    if (index > chunkStart) {
+                        futures.add(executor.submit(newScanTask(chunkStart, index,
+                                candidateIds, phraseIds, searchTokens, pattern, context)));
+                    }
+                }
+                for (final Future<List<List<RowMatch>>> future : futures) {
+                    final List<List<RowMatch>> chunkMatches = ParallelMap.getResult(future);
+                    if (chunkMatches == null) {
+                        return context.isInterrupted() ? -1 : matchCount;
+                    }
+                    for (final List<RowMatch> entryMatches : chunkMatches) {
+                        if (matchCount >= MAX_SEARCH_ROWS) {
+                            return matchCount;
+                        }
+                        for (final RowMatch match : entryMatches) {
+                            // Another chunk may have matched it already.
+                            if (rowsAlreadySeen.add(match.rowKey)) {
+                                matches.add(match.matchType, match.row, match.sideLength);
+                                ++matchCount;
+                                if (stream != null) {
+                                    stream.add(match);
+                                }
+                            }
+                        }
+                        if (stream != null) {
+                            stream.endOfEntry();
+                        }
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                return -1;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                // Not cancel(true): see ByteSource.Channel. The tasks poll
+                // context and stop on their own.
+                for (final Future<List<List<RowMatch>>> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return matchCount;
+    }
+
+    /**
+     * @return a task giving the matches of each of sortedIndexEntries[start,
+     *         end), or null if context said to stop.
+     */
+    private Callable<List<List<RowMatch>>> newScanTask(final int start, final int end,
+            final int[] candidateIds, final int[] phraseIds, final List<String> searchTokens,
+            final Pattern pattern, final SearchContext context) {
+        return new Callable<List<List<RowMatch>>>() {
+            @Override
+            public List<List<RowMatch>> call() {
+                final Transliterator normalizer = borrowNormalizer();
+                try {
+                    final Set<RowKey> rowsSeen = new HashSet<RowKey>();
+                    final List<List<RowMatch>> result = new ArrayList<List<RowMatch>>(end
+                            - start);
+                    for (int index = start; index < end; ++index) {
+                        final List<RowMatch> entryMatches = new ArrayList<RowMatch>();
+                        if (!matchRows(sortedIndexEntries.get(index), candidateIds,
+                                phraseIds, searchTokens, pattern, normalizer, rowsSeen,
+                                entryMatches, context)) {
+                            return null;
+                        }
+                        result.add(entryMatches);
+                    }
+                    return result;
+                } finally {
+                    returnNormalizer(normalizer);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a normalizer that only this thread is using: Transliterators
+     *         aren't thread-safe.
+     */
+    private Transliterator borrowNormalizer() {
+        synchronized (spareNormalizers) {
+            if (!spareNormalizers.isEmpty()) {
+                return spareNormalizers.remove(spareNormalizers.size() - 1);
+            }
+        }
+        return Transliterator.createFromRules("", normalizerRules, Transliterator.FORWARD);
+    }
+
+    private void returnNormalizer(final Transliterator normalizer) {
+        synchronized (spareNormalizers) {
+            spareNormalizers.add(normalizer);
+        }
+    }
+
     private String normalizeToken(final String searchToken) {
         if (TransliteratorManager.init(null)) {
             final Transliterator normalizer = normalizer();
@@ -0,0 +1,270 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.util.BufferList;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.VarInt;
+import com.hughes.util.CachingList;
+import com.hughes.util.TransformingList;
+import com.ibm.icu.text.Collator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Index.sortedIndexEntries as stored since dictFileVersion 8: blocks of
+ * BLOCK_SIZE entries, each front-coded against the previous entry and
+ * varint-encoded, plus the normalized token at the head of each block. The
+ * heads are kept in memory, so a lookup only has to decode a single block.
+ */
+final class IndexEntryBlockList extends AbstractList<IndexEntry> implements RandomAccess {
+
+    static final int BLOCK_SIZE = 32;
+
+    private final Index index;
+    private final int size;
+    final int blockSize;
+    private final int numBlocks;
+
+    private final ByteSource source;
+    private final long headsOffset;
+    private final int headsLength;
+    private volatile String[] heads = null;
+
+    private final List<IndexEntry[]> blocks;
+
+    IndexEntryBlockList(final Index index, final DataInputBuffer in) throws IOException {
+        this.index = index;
+        size = in.readInt();
+        blockSize = in.readInt();
+        numBlocks = (size + blockSize - 1) / blockSize;
+        source = in.getSource();
+        headsLength = in.readInt();
+        headsOffset = in.getFilePointer();
+        in.skipBytes(headsLength);
+        blocks = CachingList.create(BufferList.create(in, blockSerializer),
+                Math.max(1, Index.CACHE_SIZE / blockSize));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IndexEntry get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("IndexEntryBlockList: i=" + i + ", size=" + size);
+        }
+        return blocks.get(i / blockSize)[i % blockSize];
+    }
+
+    /**
+     * @return the first block whose head doesn't sort before normalizedToken,
+     *         or the number of blocks if there isn't one. The first entry not
+     *         before normalizedToken is in the block before that one, or is
+     *         that block's head.
+     */
+    int findFirstBlockNotBefore(final String normalizedToken, final Collator sortCollator) {
+        final String[] heads = getHeads();
+        int start = 0;
+        int end = heads.length;
+        while (start < end) {
+            final int mid = (start + end) / 2;
+            if (sortCollator.compare(heads[mid], normalizedToken) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    private String[] getHeads() {
+        String[] result = heads;
+        if (result == null) {
+            result = new String[numBlocks];
+            final DataInputBuffer in = new DataInputBuffer(source, headsOffset, headsLength);
+            try {
+                for (int i = 0; i < numBlocks; ++i) {
+                    result[i] = in.readUTF();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            heads = result;
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------
+
+    private final BufferListSerializer<IndexEntry[]> blockSerializer = new BufferListSerializer<IndexEntry[]>() {
+        @Override
+        public IndexEntry[] read(final DataInputBuffer in, final int blockIndex)
+                throws IOException {
+            final IndexEntry[] result = new IndexEntry[Math.min(blockSize, size - blockIndex
+                    * blockSize)];
+            String prevToken = "";
+            String prevNormalizedToken = "";
+            int prevStartRow = 0;
+            for (int i = 0; i < result.length; ++i) {
+                final boolean hasNormalizedForm = in.readBoolean();
+                final String normalizedToken = readFrontCoded(in, prevNormalizedToken);
+                final String token = hasNormalizedForm ? readFrontCoded(in, prevToken)
+                        : normalizedToken;
+                final int startRow = prevStartRow + VarInt.readSigned(in);
+                final int numRows = VarInt.read(in);
+                final int numHtmlEntries = VarInt.read(in);
+                final List<HtmlEntry> htmlEntries;
+                if (numHtmlEntries == 0) {
+                    htmlEntries = Collections.emptyList();
+                } else {
+                    final Integer[] htmlEntryIndices = new Integer[numHtmlEntries];
+                    for (int h = 0; h < numHtmlEntries; ++h) {
+                        htmlEntryIndices[h] = VarInt.read(in);
+                    }
+                    htmlEntries = TransformingList.create(Arrays.asList(htmlEntryIndices),
+                            htmlEntryIndexToHtmlEntry);
+                }
+                result[i] = new IndexEntry(index, token, normalizedToken, startRow, numRows,
+                        htmlEntries);
+                prevToken = token;
+                prevNormalizedToken = normalizedToken;
+                prevStartRow = startRow;
+            }
+            return result;
+        }
+    };
+
+    private final TransformingList.Transformer<Integer, HtmlEntry> htmlEntryIndexToHtmlEntry = new TransformingList.Transformer<Integer, HtmlEntry>() {
+        @Override
+        public HtmlEntry transform(final Integer htmlEntryIndex) {
+            return index.dict.htmlEntries.get(htmlEntryIndex);
+        }
+    };
+
+    /**
+     * The blocks of a list of entries, ready to be written anywhere.
+     */
+    static final class Encoded {
+        final int size;
+        final byte[] heads;
+        final List<byte[]> blocks;
+
+        private Encoded(final int size, final byte[] heads, final List<byte[]> blocks) {
+            this.size = size;
+            this.heads = heads;
+            this.blocks = blocks;
+        }
+    }
+
+    static Encoded encode(final List<IndexEntry> entries) throws IOException {
+        final int blockSize = BLOCK_SIZE;
+        final ByteArrayOutputStream headBytes = new ByteArrayOutputStream();
+        final DataOutputStream headsOut = new DataOutputStream(headBytes);
+        final List<byte[]> encodedBlocks = new ArrayList<byte[]>();
+        for (int blockStart = 0; blockStart < entries.size(); blockStart += blockSize) {
+            final List<IndexEntry> block = entries.subList(blockStart,
+                    Math.min(entries.size(), blockStart + blockSize));
+            headsOut.writeUTF(block.get(0).normalizedToken());
+            encodedBlocks.add(encodeBlock(block));
+        }
+        headsOut.close();
+        return new Encoded(entries.size(), headBytes.toByteArray(), encodedBlocks);
+    }
+
+    static void write(final RandomAccessFile raf, final Encoded encoded) throws IOException {
+        raf.writeInt(encoded.size);
+        raf.writeInt(BLOCK_SIZE);
+        raf.writeInt(encoded.heads.length);
+        raf.write(encoded.heads);
+        BufferList.write(raf, encoded.blocks);
+    }
+
+    private static byte[] encodeBlock(final List<IndexEntry> block) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        String prevToken = "";
+        String prevNormalizedToken = "";
+        int prevStartRow = 0;
+        for (final IndexEntry indexEntry : block) {
+            final boolean hasNormalizedForm = !indexEntry.token.equals(
+                    indexEntry.normalizedToken());
+            out.writeBoolean(hasNormalizedForm);
+            writeFrontCoded(out, prevNormalizedToken, indexEntry.normalizedToken());
+            if (hasNormalizedForm) {
+                writeFrontCoded(out, prevToken, indexEntry.token);
+            }
+            VarInt.writeSigned(out, indexEntry.startRow - prevStartRow);
+            VarInt.write(out, indexEntry.numRows);
+            VarInt.write(out, indexEntry.htmlEntries.size());
+            for (final HtmlEntry htmlEntry : indexEntry.htmlEntries) {
+                if (htmlEntry.index() == -1) {
+                    throw new IndexOutOfBoundsException();
+                }
+                VarInt.write(out, htmlEntry.index());
+            }
+            prevToken = indexEntry.token;
+            prevNormalizedToken = indexEntry.normalizedToken();
+            prevStartRow = indexEntry.startRow;
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the number of chars s shares with prev, then the rest of s as
+     * UTF-8. Never splits a surrogate pair.
+     */
+    private static void writeFrontCoded(final DataOutput out, final String prev, final String s)
+            throws IOException {
+        final int maxShared = Math.min(prev.length(), s.length());
+        int shared = 0;
+        while (shared < maxShared && prev.charAt(shared) == s.charAt(shared)) {
+            ++shared;
+        }
+        if (shared > 0 && Character.isHighSurrogate(s.charAt(shared - 1))) {
+            --shared;
+        }
+        final byte[] suffix = s.substring(shared).getBytes("UTF-8");
+        VarInt.write(out, shared);
+        VarInt.write(out, suffix.length);
+        out.write(suffix);
+    }
+
+    private static String readFrontCoded(final DataInput in, final String prev)
+            throws IOException {
+        final int shared = VarInt.read(in);
+        final byte[] suffix = new byte[VarInt.read(in)];
+        in.readFully(suffix);
+        return prev.substring(0, shared) + new String(suffix, "UTF-8");
+    }
+
+}
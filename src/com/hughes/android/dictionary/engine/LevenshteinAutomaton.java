@@ -0,0 +1,122 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accepts the strings within maxDistance edits (insertions, deletions,
+ * substitutions of code points) of a query. A state is a row of the edit
+ * distance table, capped at maxDistance + 1, so there are only finitely many;
+ * they're numbered, and transitions cached, as they're reached. Code points
+ * that aren't in the query all act alike, so they share transitions.
+ * <p>
+ * Not thread-safe.
+ */
+final class LevenshteinAutomaton {
+
+    static final int START = 0;
+
+    private final int[] query;
+    private final int[] sortedQuery;
+    private final int maxDistance;
+
+    private final List<int[]> rows = new ArrayList<int[]>();
+    private final Map<String, Integer> stateIds = new HashMap<String, Integer>();
+    private final Map<Long, Integer> transitions = new HashMap<Long, Integer>();
+
+    LevenshteinAutomaton(final String query, final int maxDistance) {
+        this.query = toCodePoints(query);
+        this.maxDistance = maxDistance;
+        sortedQuery = this.query.clone();
+        Arrays.sort(sortedQuery);
+        final int[] start = new int[this.query.length + 1];
+        for (int j = 0; j < start.length; ++j) {
+            start[j] = Math.min(j, maxDistance + 1);
+        }
+        intern(start);
+    }
+
+    private static int[] toCodePoints(final String s) {
+        final int[] result = new int[s.codePointCount(0, s.length())];
+        for (int i = 0, j = 0; i < s.length(); i += Character.charCount(result[j++])) {
+            result[j] = s.codePointAt(i);
+        }
+        return result;
+    }
+
+    private int intern(final int[] row) {
+        final char[] key = new char[row.length];
+        for (int j = 0; j < row.length; ++j) {
+            key[j] = (char) row[j];
+        }
+        final String keyString = new String(key);
+        Integer id = stateIds.get(keyString);
+        if (id == null) {
+            id = rows.size();
+            rows.add(row);
+            stateIds.put(keyString, id);
+        }
+        return id;
+    }
+
+    int step(final int state, final int codePoint) {
+        // Every code point not in the query gets the same transitions as -1.
+        final int symbol = Arrays.binarySearch(sortedQuery, codePoint) >= 0 ? codePoint : -1;
+        final Long key = ((long) state << 32) | (symbol & 0xffffffffL);
+        final Integer cached = transitions.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final int cap = maxDistance + 1;
+        final int[] row = rows.get(state);
+        final int[] next = new int[row.length];
+        next[0] = Math.min(row[0] + 1, cap);
+        for (int j = 1; j < row.length; ++j) {
+            final int substitution = row[j - 1] + (query[j - 1] == symbol ? 0 : 1);
+            next[j] = Math.min(Math.min(substitution, row[j] + 1),
+                    Math.min(next[j - 1] + 1, cap));
+        }
+        final int result = intern(next);
+        transitions.put(key, result);
+        return result;
+    }
+
+    /**
+     * @return whether some continuation of what led to state is accepted.
+     */
+    boolean isAlive(final int state) {
+        for (final int distance : rows.get(state)) {
+            if (distance <= maxDistance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the edit distance of what led to state from the query, or
+     *         maxDistance + 1 if it's more than maxDistance.
+     */
+    int getDistance(final int state) {
+        final int[] row = rows.get(state);
+        return row[row.length - 1];
+    }
+
+}
@@ -0,0 +1,58 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Normalized text of recently searched entries, by entry index. Holds at most
+ * maxSize entries, evicting the least recently used, and only softly, so the
+ * garbage collector can take them back when memory is short.
+ */
+final class NormalizedTextCache {
+
+    private final Map<Integer, SoftReference<String[]>> texts;
+
+    NormalizedTextCache(final int maxSize) {
+        texts = new LinkedHashMap<Integer, SoftReference<String[]>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Integer, SoftReference<String[]>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized String[] get(final int entryIndex) {
+        final SoftReference<String[]> ref = texts.get(entryIndex);
+        if (ref == null) {
+            return null;
+        }
+        final String[] result = ref.get();
+        if (result == null) {
+            texts.remove(entryIndex);
+        }
+        return result;
+    }
+
+    synchronized void put(final int entryIndex, final String[] normalized) {
+        texts.put(entryIndex, new SoftReference<String[]>(normalized));
+    }
+
+}
@@ -14,10 +14,14 @@
 
 package com.hughes.android.dictionary.engine;
 
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
 import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -40,7 +44,7 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         this.pairs.add(new Pair(lang1, lang2));
     }
 
-    public PairEntry(final Dictionary dictionary, final RandomAccessFile raf, final int index)
+    public PairEntry(final Dictionary dictionary, final DataInput raf, final int index)
             throws IOException {
         super(dictionary, raf, index);
         final int size = raf.readInt();
@@ -51,7 +55,7 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
     }
 
     @Override
-    public void write(RandomAccessFile raf) throws IOException {
+    void write(DataOutput raf) throws IOException {
         super.write(raf);
         // TODO: this could be a short.
         raf.writeInt(pairs.size());
@@ -62,7 +66,8 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         }
     }
 
-    static final class Serializer implements RAFListSerializer<PairEntry> {
+    static final class Serializer implements RAFListSerializer<PairEntry>,
+            BufferListSerializer<PairEntry> {
 
         final Dictionary dictionary;
 
@@ -75,6 +80,11 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
             return new PairEntry(dictionary, raf, index);
         }
 
+        @Override
+        public PairEntry read(DataInputBuffer in, int index) throws IOException {
+            return new PairEntry(dictionary, in, index);
+        }
+
         @Override
         public void write(RandomAccessFile raf, PairEntry t) throws IOException {
             t.write(raf);
@@ -97,7 +107,7 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
 
     public static class Row extends RowBase {
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput raf, final int thisRowIndex,
                 final Index index) throws IOException {
             super(raf, thisRowIndex, index);
         }
@@ -135,12 +145,8 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         public RowMatchType matches(final List<String> searchTokens,
                 final Pattern orderedMatchPattern, final Transliterator normalizer,
                 final boolean swapPairEntries) {
-            final int side = swapPairEntries ? 1 : 0;
-            final List<Pair> pairs = getEntry().pairs;
-            final String[] pairSides = new String[pairs.size()];
-            for (int i = 0; i < pairs.size(); ++i) {
-                pairSides[i] = normalizer.transform(pairs.get(i).get(side));
-            }
+            final String[] pairSides = index.getNormalizedPairSides(referenceIndex, normalizer,
+                    swapPairEntries);
             for (int i = searchTokens.size() - 1; i >= 0; --i) {
                 final String searchToken = searchTokens.get(i);
                 boolean found = false;
@@ -151,6 +157,9 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
                     return RowMatchType.NO_MATCH;
                 }
             }
+            if (orderedMatchPattern == null) {
+                return RowMatchType.BAG_OF_WORDS_MATCH;
+            }
             for (final String pairSide : pairSides) {
                 if (orderedMatchPattern.matcher(pairSide).find()) {
                     return RowMatchType.ORDERED_MATCH;
@@ -0,0 +1,146 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.util.BufferList;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.ParallelMap;
+import com.hughes.android.util.RawDeflate;
+import com.hughes.util.CachingList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Dictionary.pairEntries as optionally stored since dictFileVersion 11:
+ * blocks of BLOCK_SIZE consecutive entries, each block Deflated as a whole.
+ * Rows near each other in an Index mostly point at entries near each other,
+ * so one block read serves many of them. Decoded blocks are kept in an LRU
+ * cache.
+ */
+final class PairEntryBlockList extends AbstractList<PairEntry> implements RandomAccess {
+
+    static final int BLOCK_SIZE = 64;
+    // Blocks compressed per task when writing in parallel.
+    private static final int ENCODE_CHUNK_SIZE = 16;
+
+    private final Dictionary dictionary;
+    private final int size;
+    private final int blockSize;
+
+    private final List<PairEntry[]> blocks;
+
+    PairEntryBlockList(final Dictionary dictionary, final DataInputBuffer in)
+            throws IOException {
+        this.dictionary = dictionary;
+        size = in.readInt();
+        blockSize = in.readInt();
+        if (size < 0 || blockSize <= 0) {
+            throw new IOException("Invalid PairEntry blocks: size=" + size + ", blockSize="
+                    + blockSize);
+        }
+        blocks = CachingList.create(BufferList.create(in, blockSerializer),
+                Math.max(1, Dictionary.CACHE_SIZE / blockSize));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public PairEntry get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("PairEntryBlockList: i=" + i + ", size=" + size);
+        }
+        return blocks.get(i / blockSize)[i % blockSize];
+    }
+
+    private final BufferListSerializer<PairEntry[]> blockSerializer = new BufferListSerializer<PairEntry[]>() {
+        @Override
+        public PairEntry[] read(final DataInputBuffer in, final int blockIndex)
+                throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+            final byte[] zipBytes = new byte[in.readInt()];
+            in.readFully(zipBytes);
+            RawDeflate.decompress(zipBytes, bytes, null);
+            final DataInputStream blockIn = new DataInputStream(new ByteArrayInputStream(bytes));
+            final int firstIndex = blockIndex * blockSize;
+            final PairEntry[] result = new PairEntry[Math.min(blockSize, size - firstIndex)];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = new PairEntry(dictionary, blockIn, firstIndex + i);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param executor where to compress blocks, or null to do it on this
+     *            thread.
+     */
+    static void write(final RandomAccessFile raf, final List<PairEntry> entries,
+            final ExecutorService executor) throws IOException {
+        final int blockSize = BLOCK_SIZE;
+        final List<List<PairEntry>> blocks = new ArrayList<List<PairEntry>>();
+        for (int blockStart = 0; blockStart < entries.size(); blockStart += blockSize) {
+            blocks.add(entries.subList(blockStart,
+                    Math.min(entries.size(), blockStart + blockSize)));
+        }
+        final List<byte[]> encodedBlocks = ParallelMap.map(executor, blocks,
+                new ParallelMap.Function<List<PairEntry>, byte[]>() {
+                    @Override
+                    public byte[] apply(final List<PairEntry> block) throws IOException {
+                        return encodeBlock(block);
+                    }
+                }, ENCODE_CHUNK_SIZE);
+        raf.writeInt(entries.size());
+        raf.writeInt(blockSize);
+        BufferList.write(raf, encodedBlocks);
+    }
+
+    /**
+     * @return the uncompressed length, the compressed length, then the
+     *         compressed entries.
+     */
+    private static byte[] encodeBlock(final List<PairEntry> block) throws IOException {
+        final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        final DataOutputStream entriesOut = new DataOutputStream(entryBytes);
+        for (final PairEntry pairEntry : block) {
+            pairEntry.write(entriesOut);
+        }
+        entriesOut.close();
+        final byte[] bytes = entryBytes.toByteArray();
+        final byte[] zipBytes = RawDeflate.compress(bytes, null);
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(zipBytes.length + 8);
+        final DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(bytes.length);
+        out.writeInt(zipBytes.length);
+        out.write(zipBytes);
+        out.close();
+        return result.toByteArray();
+    }
+
+}
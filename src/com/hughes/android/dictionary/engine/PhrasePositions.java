@@ -0,0 +1,265 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.VarInt;
+import com.ibm.icu.text.Transliterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The optional phrase positions of an Index since dictFileVersion 15: for each
+ * IndexEntry, where its normalizedToken is a word of the PairEntries in its
+ * posting list, so that phrase searches check which words are next to each
+ * other instead of running a regex over every side.
+ * <p>
+ * A position is the index of a pair in its PairEntry, then the index of the
+ * word in that pair's side in the low WORD_BITS. A list has a VarInt count of
+ * posting list ids, then for each in turn a VarInt count of positions and
+ * VarInt gaps between them.
+ */
+final class PhrasePositions {
+
+    static final int WORD_BITS = 16;
+    // Beyond these, words aren't given positions.
+    private static final int MAX_WORDS = (1 << WORD_BITS) - 1;
+    private static final int MAX_PAIRS = 1 << (31 - WORD_BITS);
+
+    // Words are split apart like tokens are, then normalized one by one.
+    private static final Pattern WORD = Pattern.compile("['\\p{L}\\p{M}\\p{N}]+");
+    // What multiWordSearch's regex allows between the words of a phrase. Words
+    // with anything else between them, like a hyphen, get an empty word
+    // between them too, so that they aren't next to each other.
+    private static final Pattern SPACE = Pattern.compile("\\s*");
+
+    private PhrasePositions() {
+    }
+
+    /**
+     * The normalized words of the side of each pair of each PairEntry, worked
+     * out while writing. Only the most recently used are kept, so a big
+     * dictionary doesn't end up with all of its words in memory at once.
+     */
+    static final class Words {
+        private static final int MAX_CACHED = 4096;
+
+        private final Index index;
+        private final Transliterator normalizer;
+        private final Map<Integer, String[][]> words = new LinkedHashMap<Integer, String[][]>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, String[][]> eldest) {
+                return size() > MAX_CACHED;
+            }
+        };
+
+        Words(final Index index, final Transliterator normalizer) {
+            this.index = index;
+            this.normalizer = normalizer;
+        }
+
+        String[][] get(final int pairEntryIndex) {
+            String[][] result = words.get(pairEntryIndex);
+            if (result == null) {
+                final int side = index.swapPairEntries ? 1 : 0;
+                final List<PairEntry.Pair> pairs = index.dict.pairEntries.get(pairEntryIndex).pairs;
+                result = new String[Math.min(pairs.size(), MAX_PAIRS)][];
+                for (int i = 0; i < result.length; ++i) {
+                    final List<String> pairWords = new ArrayList<String>();
+                    final String text = pairs.get(i).get(side);
+                    final Matcher matcher = WORD.matcher(text);
+                    final Matcher space = SPACE.matcher(text);
+                    int previousEnd = -1;
+                    while (matcher.find() && pairWords.size() < MAX_WORDS - 1) {
+                        if (previousEnd != -1
+                                && !space.region(previousEnd, matcher.start()).matches()) {
+                            pairWords.add("");
+                        }
+                        pairWords.add(normalizer.transliterate(matcher.group()));
+                        previousEnd = matcher.end();
+                    }
+                    result[i] = pairWords.toArray(new String[pairWords.size()]);
+                }
+                words.put(pairEntryIndex, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param ids the posting list of indexEntry.
+     */
+    static byte[] encode(final IndexEntry indexEntry, final int[] ids, final Words words)
+            throws IOException {
+        final String normalizedToken = indexEntry.normalizedToken();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * ids.length + 4);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        VarInt.write(out, ids.length);
+        final List<Integer> positions = new ArrayList<Integer>();
+        for (final int id : ids) {
+            positions.clear();
+            final int pairEntryIndex = PostingLists.getPairEntryIndex(id);
+            if (pairEntryIndex != -1) {
+                final String[][] pairWords = words.get(pairEntryIndex);
+                for (int pair = 0; pair < pairWords.length; ++pair) {
+                    for (int word = 0; word < pairWords[pair].length; ++word) {
+                        if (pairWords[pair][word].equals(normalizedToken)
+                                && normalizedToken.length() > 0) {
+                            positions.add((pair << WORD_BITS) | word);
+                        }
+                    }
+                }
+            }
+            VarInt.write(out, positions.size());
+            int previous = 0;
+            for (final int position : positions) {
+                VarInt.write(out, position - previous);
+                previous = position;
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads, for each id of the posting list, its sorted positions.
+     */
+    static final BufferListSerializer<int[][]> SERIALIZER = new BufferListSerializer<int[][]>() {
+        @Override
+        public int[][] read(final DataInputBuffer in, final int listIndex) throws IOException {
+            final int idCount = VarInt.read(in);
+            if (idCount < 0) {
+                throw new IOException("Invalid phrase positions: idCount=" + idCount);
+            }
+            final int[][] result = new int[idCount][];
+            for (int i = 0; i < idCount; ++i) {
+                final int count = VarInt.read(in);
+                if (count < 0) {
+                    throw new IOException("Invalid phrase positions: count=" + count);
+                }
+                final int[] positions = new int[count];
+                int previous = 0;
+                for (int j = 0; j < count; ++j) {
+                    previous += VarInt.read(in);
+                    positions[j] = previous;
+                }
+                result[i] = positions;
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param candidateIds if not null, the only ids to keep.
+     * @return each (id, position) as id in the high half and position in the
+     *         low, sorted.
+     */
+    static long[] join(final int[] ids, final int[][] positions, final int[] candidateIds) {
+        int total = 0;
+        for (final int[] idPositions : positions) {
+            total += idPositions.length;
+        }
+        final long[] result = new long[total];
+        int count = 0;
+        for (int i = 0; i < ids.length && i < positions.length; ++i) {
+            if (candidateIds != null && Arrays.binarySearch(candidateIds, ids[i]) < 0) {
+                continue;
+            }
+            for (final int position : positions[i]) {
+                result[count++] = ((long) ids[i] << 32) | position;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Merges sorted lists from join() into one sorted list without
+     * duplicates.
+     */
+    static long[] union(final List<long[]> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        int total = 0;
+        for (final long[] list : lists) {
+            total += list.length;
+        }
+        final long[] all = new long[total];
+        int pos = 0;
+        for (final long[] list : lists) {
+            System.arraycopy(list, 0, all, pos, list.length);
+            pos += list.length;
+        }
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (distinct == 0 || all[i] != all[distinct - 1]) {
+                all[distinct++] = all[i];
+            }
+        }
+        return distinct == all.length ? all : Arrays.copyOf(all, distinct);
+    }
+
+    /**
+     * @param phrases where phrases end so far, as from join().
+     * @param words where the next word is, as from join().
+     * @return where the phrases end that go on with the next word.
+     */
+    static long[] followedBy(final long[] phrases, final long[] words) {
+        final long[] result = new long[Math.min(phrases.length, words.length)];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < phrases.length && j < words.length; ++i) {
+            final long next = phrases[i] + 1;
+            while (j < words.length && words[j] < next) {
+                ++j;
+            }
+            if (j < words.length && words[j] == next) {
+                result[count++] = next;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return the sorted, distinct ids in phrases.
+     */
+    static int[] getIds(final long[] phrases) {
+        final int[] result = new int[phrases.length];
+        int count = 0;
+        for (final long phrase : phrases) {
+            final int id = (int) (phrase >>> 32);
+            if (count == 0 || result[count - 1] != id) {
+                result[count++] = id;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+}
@@ -0,0 +1,207 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The optional posting lists of an Index since dictFileVersion 13: for each
+ * IndexEntry, the sorted ids of the entries in its rows, so that multi-word
+ * searches can intersect them before creating any rows.
+ * <p>
+ * An id is an entry's referenceIndex with its kind in the low two bits. A
+ * list is stored as a VarInt count, then VarInt gaps between ids.
+ */
+final class PostingLists {
+
+    private static final int KIND_BITS = 2;
+    private static final int KIND_PAIR_ENTRY = 0;
+    private static final int KIND_TEXT_ENTRY = 1;
+    private static final int KIND_HTML_ENTRY = 2;
+
+    static final int[] EMPTY = new int[0];
+
+    private PostingLists() {
+    }
+
+    /**
+     * @return the id of the entry at row of index, or -1 for a TokenRow.
+     */
+    static int getId(final Index index, final int row) {
+        if (index.rowTable != null) {
+            final int referenceIndex = index.rowTable.getReferenceIndex(row);
+            switch (index.rowTable.getType(row)) {
+                case RowTable.TYPE_PAIR_ENTRY:
+                    return id(referenceIndex, KIND_PAIR_ENTRY);
+                case RowTable.TYPE_TEXT_ENTRY:
+                    return id(referenceIndex, KIND_TEXT_ENTRY);
+                case RowTable.TYPE_HTML_ENTRY:
+                    return id(referenceIndex, KIND_HTML_ENTRY);
+                default:
+                    return -1;
+            }
+        }
+        final RowBase rowBase = index.rows.get(row);
+        if (rowBase instanceof PairEntry.Row) {
+            return id(rowBase.referenceIndex, KIND_PAIR_ENTRY);
+        } else if (rowBase instanceof TextEntry.Row) {
+            return id(rowBase.referenceIndex, KIND_TEXT_ENTRY);
+        } else if (rowBase instanceof HtmlEntry.Row) {
+            return id(rowBase.referenceIndex, KIND_HTML_ENTRY);
+        }
+        return -1;
+    }
+
+    private static int id(final int referenceIndex, final int kind) {
+        return (referenceIndex << KIND_BITS) | kind;
+    }
+
+    /**
+     * @return the index of the PairEntry with id, or -1 if it isn't one.
+     */
+    static int getPairEntryIndex(final int id) {
+        return (id & ((1 << KIND_BITS) - 1)) == KIND_PAIR_ENTRY ? id >>> KIND_BITS : -1;
+    }
+
+    /**
+     * @return the sorted, distinct ids of the entries under indexEntry.
+     */
+    static int[] getIds(final Index index, final IndexEntry indexEntry) {
+        final int end = Math.min(index.rows.size(), indexEntry.startRow + 1 + indexEntry.numRows);
+        int[] ids = new int[Math.max(0, end - indexEntry.startRow - 1)];
+        int count = 0;
+        // Extra +1 to skip token row.
+        for (int row = indexEntry.startRow + 1; row < end; ++row) {
+            final int id = getId(index, row);
+            if (id != -1) {
+                ids[count++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; ++i) {
+            if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        if (distinct != ids.length) {
+            ids = Arrays.copyOf(ids, distinct);
+        }
+        return ids;
+    }
+
+    static byte[] encode(final int[] ids) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.length + 4);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        VarInt.write(out, ids.length);
+        int previous = 0;
+        for (final int id : ids) {
+            VarInt.write(out, id - previous);
+            previous = id;
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static final BufferListSerializer<int[]> SERIALIZER = new BufferListSerializer<int[]>() {
+        @Override
+        public int[] read(final DataInputBuffer in, final int listIndex) throws IOException {
+            final int count = VarInt.read(in);
+            if (count < 0) {
+                throw new IOException("Invalid posting list: count=" + count);
+            }
+            final int[] ids = new int[count];
+            int previous = 0;
+            for (int i = 0; i < count; ++i) {
+                previous += VarInt.read(in);
+                ids[i] = previous;
+            }
+            return ids;
+        }
+    };
+
+    /**
+     * Merges sorted lists into one sorted list without duplicates.
+     */
+    static int[] union(final List<int[]> lists) {
+        if (lists.isEmpty()) {
+            return EMPTY;
+        }
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        int total = 0;
+        for (final int[] list : lists) {
+            total += list.length;
+        }
+        final int[] all = new int[total];
+        int pos = 0;
+        for (final int[] list : lists) {
+            System.arraycopy(list, 0, all, pos, list.length);
+            pos += list.length;
+        }
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (distinct == 0 || all[i] != all[distinct - 1]) {
+                all[distinct++] = all[i];
+            }
+        }
+        return distinct == all.length ? all : Arrays.copyOf(all, distinct);
+    }
+
+    /**
+     * Intersects two sorted lists by walking the shorter one and galloping
+     * ahead in the longer one, so that a rare list costs little against a
+     * common one.
+     */
+    static int[] intersect(final int[] a, final int[] b) {
+        final int[] small = a.length <= b.length ? a : b;
+        final int[] large = a.length <= b.length ? b : a;
+        final int[] result = new int[small.length];
+        int count = 0;
+        int low = 0;
+        for (int i = 0; i < small.length && low < large.length; ++i) {
+            final int id = small[i];
+            // Gallop to bracket id, then binary search within the bracket.
+            int step = 1;
+            int high = low;
+            while (high < large.length && large[high] < id) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            final int found = Arrays.binarySearch(large, low, Math.min(high + 1, large.length),
+                    id);
+            if (found >= 0) {
+                result[count++] = id;
+                low = found + 1;
+            } else {
+                low = -found - 1;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+}
@@ -0,0 +1,116 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * For each recently searched normalized prefix, the range of IndexEntries
+ * starting with it and how many rows they have. Lookups don't lock; when the
+ * cache is full, the least recently used prefix is evicted.
+ */
+public final class PrefixRangeCache {
+
+    static final class Range {
+        // The first entry not before the prefix.
+        final int start;
+        // Just past the last entry counted.
+        final int end;
+        final int rowCount;
+        // False if counting stopped at maxRows before the end of the prefix.
+        final boolean complete;
+
+        volatile long lastUsed;
+
+        Range(final int start, final int end, final int rowCount, final boolean complete) {
+            this.start = start;
+            this.end = end;
+            this.rowCount = rowCount;
+            this.complete = complete;
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Range> ranges = new ConcurrentHashMap<String, Range>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    PrefixRangeCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    Range get(final String normalizedPrefix) {
+        final Range range = ranges.get(normalizedPrefix);
+        if (range == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        range.lastUsed = clock.incrementAndGet();
+        return range;
+    }
+
+    void put(final String normalizedPrefix, final Range range) {
+        range.lastUsed = clock.incrementAndGet();
+        ranges.put(normalizedPrefix, range);
+        if (ranges.size() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Scans for the least recently used; the cache is small and this only
+     * happens on a miss.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            while (ranges.size() > maxSize) {
+                Map.Entry<String, Range> oldest = null;
+                for (final Map.Entry<String, Range> entry : ranges.entrySet()) {
+                    if (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed) {
+                        oldest = entry;
+                    }
+                }
+                if (oldest == null) {
+                    return;
+                }
+                ranges.remove(oldest.getKey(), oldest.getValue());
+            }
+        }
+    }
+
+    public int size() {
+        return ranges.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PrefixRangeCache(size=%d, hits=%d, misses=%d)", size(),
+                getHitCount(), getMissCount());
+    }
+
+}
@@ -14,10 +14,13 @@
 
 package com.hughes.android.dictionary.engine;
 
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
 import com.hughes.util.IndexedObject;
 import com.hughes.util.raf.RAFListSerializer;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -41,7 +44,7 @@ public abstract class RowBase extends IndexedObject {
      */
     private TokenRow tokenRow = null;
 
-    RowBase(final RandomAccessFile raf, final int thisRowIndex, final Index index)
+    RowBase(final DataInput raf, final int thisRowIndex, final Index index)
             throws IOException {
         super(thisRowIndex);
         this.index = index;
@@ -58,7 +61,7 @@ public abstract class RowBase extends IndexedObject {
         final Class<? extends RowBase> rowClass;
         final int referenceIndex;
 
-        private RowKey(Class<? extends RowBase> rowClass, int referenceIndex) {
+        RowKey(Class<? extends RowBase> rowClass, int referenceIndex) {
             this.rowClass = rowClass;
             this.referenceIndex = referenceIndex;
         }
@@ -87,7 +90,11 @@ public abstract class RowBase extends IndexedObject {
      * @return the TokenRow that this row is "filed under".
      */
     public TokenRow getTokenRow(final boolean search) {
-        if (tokenRow == null && search) {
+        if (tokenRow == null && search && index.rowTable != null) {
+            // Rows aren't cached, so there's nothing to gain from setting the
+            // TokenRow of the rows in between.
+            tokenRow = (TokenRow) index.rows.get(index.rowTable.getTokenRowIndex(index()));
+        } else if (tokenRow == null && search) {
             int r = index() - 1;
             int rUp = index() + 1;
             while (r >= 0) {
@@ -133,12 +140,16 @@ public abstract class RowBase extends IndexedObject {
 
     public abstract String getRawText(final boolean compact);
 
+    /**
+     * @param orderedMatch finds searchTokens in order, or null if the caller
+     *            already knows they aren't.
+     */
     public abstract RowMatchType matches(final List<String> searchTokens,
             final Pattern orderedMatch, final Transliterator normalizer, boolean swapPairEntries);
 
     // RowBase must manage "disk-based" polymorphism. All other polymorphism is
     // dealt with in the normal manner.
-    static class Serializer implements RAFListSerializer<RowBase> {
+    static class Serializer implements RAFListSerializer<RowBase>, BufferListSerializer<RowBase> {
 
         final Index index;
 
@@ -148,14 +159,24 @@ public abstract class RowBase extends IndexedObject {
 
         @Override
         public RowBase read(RandomAccessFile raf, final int listIndex) throws IOException {
+            return read((DataInput) raf, listIndex);
+        }
+
+        @Override
+        public RowBase read(DataInputBuffer in, final int listIndex) throws IOException {
+            return read((DataInput) in, listIndex);
+        }
+
+        private RowBase read(DataInput raf, final int listIndex) throws IOException {
             final byte rowType = raf.readByte();
-            if (rowType == 0) {
+            if (rowType == RowTable.TYPE_PAIR_ENTRY) {
                 return new PairEntry.Row(raf, listIndex, index);
-            } else if (rowType == 1 || rowType == 3) {
-                return new TokenRow(raf, listIndex, index, /* hasMainEntry */rowType == 1);
-            } else if (rowType == 2) {
+            } else if (rowType == RowTable.TYPE_TOKEN
+                    || rowType == RowTable.TYPE_TOKEN_WITHOUT_MAIN_ENTRY) {
+                return new TokenRow(raf, listIndex, index, rowType == RowTable.TYPE_TOKEN);
+            } else if (rowType == RowTable.TYPE_TEXT_ENTRY) {
                 return new TextEntry.Row(raf, listIndex, index);
-            } else if (rowType == 4) {
+            } else if (rowType == RowTable.TYPE_HTML_ENTRY) {
                 return new HtmlEntry.Row(raf, listIndex, index);
             }
             throw new RuntimeException("Invalid rowType:" + rowType);
@@ -164,14 +185,15 @@ public abstract class RowBase extends IndexedObject {
         @Override
         public void write(RandomAccessFile raf, RowBase t) throws IOException {
             if (t instanceof PairEntry.Row) {
-                raf.writeByte(0);
+                raf.writeByte(RowTable.TYPE_PAIR_ENTRY);
             } else if (t instanceof TokenRow) {
                 final TokenRow tokenRow = (TokenRow) t;
-                raf.writeByte(tokenRow.hasMainEntry ? 1 : 3);
+                raf.writeByte(tokenRow.hasMainEntry ? RowTable.TYPE_TOKEN
+                        : RowTable.TYPE_TOKEN_WITHOUT_MAIN_ENTRY);
             } else if (t instanceof TextEntry.Row) {
-                raf.writeByte(2);
+                raf.writeByte(RowTable.TYPE_TEXT_ENTRY);
             } else if (t instanceof HtmlEntry.Row) {
-                raf.writeByte(4);
+                raf.writeByte(RowTable.TYPE_HTML_ENTRY);
             }
             raf.writeInt(t.referenceIndex);
         }
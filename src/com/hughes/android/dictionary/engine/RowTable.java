@@ -0,0 +1,194 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * The rows of an Index as read from a file, in the layout written by
+ * UniformRAFList with RowBase.Serializer: an int size, an int datum size, then
+ * a type byte and a referenceIndex per row.
+ * <p>
+ * The type and referenceIndex of a row can be had without creating a RowBase;
+ * get() creates a new RowBase each time it's called. Rows are read a page at a
+ * time into primitive arrays, and pages are kept once read.
+ */
+public final class RowTable extends AbstractList<RowBase> implements RandomAccess {
+
+    // The type bytes written by RowBase.Serializer.
+    static final byte TYPE_PAIR_ENTRY = 0;
+    static final byte TYPE_TOKEN = 1;
+    static final byte TYPE_TEXT_ENTRY = 2;
+    static final byte TYPE_TOKEN_WITHOUT_MAIN_ENTRY = 3;
+    static final byte TYPE_HTML_ENTRY = 4;
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final Index index;
+    private final ByteSource source;
+    private final int size;
+    private final int datumSize;
+    private final long dataStart;
+
+    // Filled in without locking: two threads may both read a page, but a
+    // Page is filled in entirely by its constructor and its fields are final,
+    // so either copy is safe to use.
+    private final Page[] pages;
+
+    private static final class Page {
+        final byte[] types;
+        final int[] referenceIndices;
+
+        /**
+         * @param bytes size rows of datumSize bytes each.
+         */
+        Page(final ByteBuffer bytes, final int size, final int datumSize) {
+            types = new byte[size];
+            referenceIndices = new int[size];
+            for (int i = 0; i < size; ++i) {
+                bytes.position(i * datumSize);
+                types[i] = bytes.get();
+                referenceIndices[i] = bytes.getInt();
+            }
+        }
+    }
+
+    /**
+     * Reads the table at the current position of in, and leaves in positioned
+     * just past it.
+     */
+    RowTable(final Index index, final DataInputBuffer in) throws IOException {
+        this.index = index;
+        this.source = in.getSource();
+        size = in.readInt();
+        datumSize = in.readInt();
+        if (size < 0 || datumSize < 5) {
+            throw new IOException("Invalid row table: size=" + size + ", datumSize="
+                    + datumSize);
+        }
+        dataStart = in.getFilePointer();
+        pages = new Page[(size + PAGE_SIZE - 1) >> PAGE_SHIFT];
+        in.seek(dataStart + (long) size * datumSize);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private Page getPage(final int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("RowTable: row=" + row + ", size=" + size);
+        }
+        final int pageIndex = row >> PAGE_SHIFT;
+        Page page = pages[pageIndex];
+        if (page == null) {
+            final int firstRow = pageIndex << PAGE_SHIFT;
+            final int pageSize = Math.min(PAGE_SIZE, size - firstRow);
+            try {
+                page = new Page(source.read(dataStart + (long) firstRow * datumSize, pageSize
+                        * datumSize), pageSize, datumSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            pages[pageIndex] = page;
+        }
+        return page;
+    }
+
+    public byte getType(final int row) {
+        return getPage(row).types[row & (PAGE_SIZE - 1)];
+    }
+
+    public int getReferenceIndex(final int row) {
+        return getPage(row).referenceIndices[row & (PAGE_SIZE - 1)];
+    }
+
+    public boolean isTokenRow(final int row) {
+        final byte type = getType(row);
+        return type == TYPE_TOKEN || type == TYPE_TOKEN_WITHOUT_MAIN_ENTRY;
+    }
+
+    RowBase.RowKey getRowKey(final int row) {
+        final Class<? extends RowBase> rowClass;
+        switch (getType(row)) {
+            case TYPE_PAIR_ENTRY:
+                rowClass = PairEntry.Row.class;
+                break;
+            case TYPE_TOKEN:
+            case TYPE_TOKEN_WITHOUT_MAIN_ENTRY:
+                rowClass = TokenRow.class;
+                break;
+            case TYPE_TEXT_ENTRY:
+                rowClass = TextEntry.Row.class;
+                break;
+            case TYPE_HTML_ENTRY:
+                rowClass = HtmlEntry.Row.class;
+                break;
+            default:
+                throw new RuntimeException("Invalid rowType:" + getType(row));
+        }
+        return new RowBase.RowKey(rowClass, getReferenceIndex(row));
+    }
+
+    /**
+     * @return the index of the TokenRow that row is "filed under", found the
+     *         same way as RowBase.getTokenRow, but without creating rows.
+     */
+    public int getTokenRowIndex(final int row) {
+        int r = row;
+        int rUp = row + 1;
+        while (r >= 0) {
+            if (isTokenRow(r)) {
+                return r;
+            }
+            if (rUp < size) {
+                if (isTokenRow(rUp)) {
+                    // The TokenRow before the next one.
+                    return index.sortedIndexEntries.get(getReferenceIndex(rUp) - 1).startRow;
+                }
+                ++rUp;
+            }
+            --r;
+        }
+        throw new IllegalStateException("No TokenRow for row " + row);
+    }
+
+    @Override
+    public RowBase get(final int row) {
+        final byte type = getType(row);
+        final int referenceIndex = getReferenceIndex(row);
+        switch (type) {
+            case TYPE_PAIR_ENTRY:
+                return new PairEntry.Row(referenceIndex, row, index);
+            case TYPE_TOKEN:
+            case TYPE_TOKEN_WITHOUT_MAIN_ENTRY:
+                return new TokenRow(referenceIndex, row, index, type == TYPE_TOKEN);
+            case TYPE_TEXT_ENTRY:
+                return new TextEntry.Row(referenceIndex, row, index);
+            case TYPE_HTML_ENTRY:
+                return new HtmlEntry.Row(referenceIndex, row, index);
+        }
+        throw new RuntimeException("Invalid rowType:" + type);
+    }
+
+}
@@ -0,0 +1,92 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * When a search has to stop: when it's interrupted, or optionally when its
+ * time is up. Interrupted searches give up and return null; searches that run
+ * out of time return what they have found so far, and isTruncated() says so.
+ */
+public final class SearchContext {
+
+    // Reading the clock costs more than reading interrupted.
+    private static final int CLOCK_CHECK_INTERVAL = 64;
+
+    final AtomicBoolean interrupted;
+
+    private final long deadlineMillis;
+
+    // Racy when scanning in parallel, which only changes how often the clock
+    // is read.
+    private int checkCount;
+
+    private volatile boolean truncated;
+
+    /**
+     * A search without a deadline.
+     */
+    public SearchContext(final AtomicBoolean interrupted) {
+        this.interrupted = interrupted;
+        this.deadlineMillis = Long.MAX_VALUE;
+    }
+
+    /**
+     * A search that gets timeoutMillis from now.
+     */
+    public SearchContext(final AtomicBoolean interrupted, final long timeoutMillis) {
+        this.interrupted = interrupted;
+        this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted.get();
+    }
+
+    /**
+     * @return true once the search has run out of time and stopped early, so
+     *         its result is only part of the whole.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Meant to be called often: only reads the clock now and then.
+     *
+     * @return true if the search should stop, because it's interrupted or out
+     *         of time.
+     */
+    boolean shouldStop() {
+        if (interrupted.get() || truncated) {
+            return true;
+        }
+        if (deadlineMillis == Long.MAX_VALUE || ++checkCount % CLOCK_CHECK_INTERVAL != 0) {
+            return false;
+        }
+        if (System.currentTimeMillis() > deadlineMillis) {
+            truncated = true;
+        }
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SearchContext(interrupted=%s, truncated=%s)", interrupted.get(),
+                truncated);
+    }
+
+}
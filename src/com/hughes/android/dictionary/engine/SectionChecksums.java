@@ -0,0 +1,149 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
+import com.hughes.android.util.ParallelMap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+/**
+ * The CRC32s stored in the table of contents since dictFileVersion 12: one
+ * per section, where the indices section only covers its list header, plus
+ * one per Index.
+ */
+final class SectionChecksums {
+
+    private static final String[] SECTION_NAMES = {
+            "sources", "pair entries", "text entries", "html entries", "indices", "end",
+    };
+
+    // Big sequential reads, so checking goes at disk speed.
+    private static final int READ_SIZE = 1 << 20;
+
+    static final class Section {
+        final String name;
+        final long start;
+        final long end;
+
+        Section(final String name, final long start, final long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private SectionChecksums() {
+    }
+
+    /**
+     * @param offsets the section offsets from the table of contents.
+     */
+    static List<Section> getSections(final ByteSource source, final long[] offsets)
+            throws IOException {
+        final long fileLength = source.length();
+        for (int i = 0; i < Dictionary.NUM_SECTIONS; ++i) {
+            if (offsets[i] < 0 || offsets[i] > fileLength
+                    || (i > 0 && offsets[i] < offsets[i - 1])) {
+                throw new IOException("Dictionary seems corrupt: " + SECTION_NAMES[i]
+                        + " at " + offsets[i] + ", length=" + fileLength);
+            }
+        }
+        // The list of indices: a size, then size + 1 offsets.
+        final DataInputBuffer in = new DataInputBuffer(source,
+                offsets[Dictionary.SECTION_INDICES]);
+        final int numIndices = in.readInt();
+        if (numIndices < 0) {
+            throw new IOException("Dictionary seems corrupt: " + numIndices + " indices");
+        }
+        final long[] indexOffsets = new long[numIndices + 1];
+        for (int i = 0; i < indexOffsets.length; ++i) {
+            indexOffsets[i] = in.readLong();
+        }
+
+        final List<Section> result = new ArrayList<Section>(Dictionary.NUM_SECTIONS
+                + numIndices);
+        for (int i = 0; i < Dictionary.NUM_SECTIONS; ++i) {
+            final long end;
+            if (i == Dictionary.SECTION_INDICES) {
+                end = indexOffsets[0];
+            } else if (i + 1 < Dictionary.NUM_SECTIONS) {
+                end = offsets[i + 1];
+            } else {
+                end = fileLength;
+            }
+            result.add(new Section(SECTION_NAMES[i], offsets[i], end));
+        }
+        for (int i = 0; i < numIndices; ++i) {
+            result.add(new Section("index " + i, indexOffsets[i], indexOffsets[i + 1]));
+        }
+        for (final Section section : result) {
+            if (section.start < 0 || section.start > section.end || section.end > fileLength) {
+                throw new IOException("Dictionary seems corrupt: " + section.name + " from "
+                        + section.start + " to " + section.end + ", length=" + fileLength);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param executor where to read sections, or null to read them all on
+     *            this thread.
+     */
+    static int[] compute(final FileChannel channel, final List<Section> sections,
+            final ExecutorService executor) throws IOException {
+        final List<Integer> checksums = ParallelMap.map(executor, sections,
+                new ParallelMap.Function<Section, Integer>() {
+                    @Override
+                    public Integer apply(final Section section) throws IOException {
+                        return compute(channel, section);
+                    }
+                }, 1);
+        final int[] result = new int[checksums.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = checksums.get(i);
+        }
+        return result;
+    }
+
+    private static int compute(final FileChannel channel, final Section section)
+            throws IOException {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, section.end
+                - section.start));
+        long position = section.start;
+        while (position < section.end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), section.end - position));
+            final int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Dictionary seems corrupt: " + section.name
+                        + " ends early at " + position);
+            }
+            crc.update(buffer.array(), 0, count);
+            position += count;
+        }
+        return (int) crc.getValue();
+    }
+
+}
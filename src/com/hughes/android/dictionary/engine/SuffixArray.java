@@ -0,0 +1,185 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.util.ByteSource;
+import com.hughes.android.util.DataInputBuffer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The optional suffix array of an Index since dictFileVersion 14: every
+ * suffix of every normalizedToken, sorted by String.compareTo, so that the
+ * entries containing or ending with some text can be found with two binary
+ * searches. A suffix is stored as an int, its entry's index shifted left by
+ * OFFSET_BITS, plus the char offset where it starts in the normalizedToken.
+ * The file holds an int count, then the ints.
+ */
+final class SuffixArray {
+
+    private static final int OFFSET_BITS = 8;
+    // Suffixes starting further into a token than this aren't stored.
+    static final int MAX_OFFSET = (1 << OFFSET_BITS) - 1;
+
+    private final ByteSource source;
+    private final long start;
+    private final int size;
+
+    /**
+     * Reads the count at the current position of in, and leaves in
+     * positioned just past the array.
+     */
+    SuffixArray(final DataInputBuffer in) throws IOException {
+        source = in.getSource();
+        size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid suffix array: size=" + size);
+        }
+        start = in.getFilePointer();
+        in.seek(start + 4L * size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getSuffix(final int i) {
+        try {
+            return source.read(start + 4L * i, 4).getInt();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int getEntryIndex(final int suffix) {
+        return suffix >>> OFFSET_BITS;
+    }
+
+    static int getOffset(final int suffix) {
+        return suffix & MAX_OFFSET;
+    }
+
+    /**
+     * @return {first, end}: the range of suffixes that start with text, or,
+     *         if whole, that are text.
+     */
+    int[] findRange(final List<IndexEntry> entries, final String text, final boolean whole) {
+        // The first suffix not before text...
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compare(entries, getSuffix(mid), text, false) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final int first = lo;
+        // ...and the first after the ones that start with (or are) text.
+        hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compare(entries, getSuffix(mid), text, !whole) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return new int[] { first, lo };
+    }
+
+    /**
+     * Compares the suffix with text, or if prefixOnly, just its first
+     * text.length() chars.
+     */
+    private static int compare(final List<IndexEntry> entries, final int suffix,
+            final String text, final boolean prefixOnly) {
+        final String token = entries.get(getEntryIndex(suffix)).normalizedToken();
+        final int offset = getOffset(suffix);
+        final int length = token.length() - offset;
+        final int n = Math.min(length, text.length());
+        for (int i = 0; i < n; ++i) {
+            final int diff = token.charAt(offset + i) - text.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        if (prefixOnly && length >= text.length()) {
+            return 0;
+        }
+        return length - text.length();
+    }
+
+    /**
+     * @return the sorted suffixes of the normalizedTokens of entries.
+     */
+    static int[] build(final List<IndexEntry> entries) {
+        if (entries.size() > (Integer.MAX_VALUE >>> OFFSET_BITS)) {
+            throw new IllegalArgumentException("Too many entries: " + entries.size());
+        }
+        final String[] tokens = new String[entries.size()];
+        int count = 0;
+        for (int i = 0; i < tokens.length; ++i) {
+            tokens[i] = entries.get(i).normalizedToken();
+            count += Math.min(tokens[i].length(), MAX_OFFSET + 1);
+        }
+        final Integer[] suffixes = new Integer[count];
+        count = 0;
+        for (int i = 0; i < tokens.length; ++i) {
+            final int end = Math.min(tokens[i].length(), MAX_OFFSET + 1);
+            for (int offset = 0; offset < end; ++offset) {
+                // Don't start in the middle of a code point.
+                if (!Character.isLowSurrogate(tokens[i].charAt(offset))) {
+                    suffixes[count++] = (i << OFFSET_BITS) | offset;
+                }
+            }
+        }
+        Arrays.sort(suffixes, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                final String tokenA = tokens[getEntryIndex(a)];
+                final String tokenB = tokens[getEntryIndex(b)];
+                final int result = tokenA.substring(getOffset(a)).compareTo(
+                        tokenB.substring(getOffset(b)));
+                // Ties in entry order, so the file doesn't depend on the sort.
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+        final int[] result = new int[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = suffixes[i];
+        }
+        return result;
+    }
+
+    static void write(final RandomAccessFile raf, final int[] suffixes) throws IOException {
+        raf.writeInt(suffixes.length);
+        final byte[] bytes = new byte[4 * suffixes.length];
+        for (int i = 0; i < suffixes.length; ++i) {
+            bytes[4 * i] = (byte) (suffixes[i] >>> 24);
+            bytes[4 * i + 1] = (byte) (suffixes[i] >>> 16);
+            bytes[4 * i + 2] = (byte) (suffixes[i] >>> 8);
+            bytes[4 * i + 3] = (byte) suffixes[i];
+        }
+        raf.write(bytes);
+    }
+
+}
@@ -14,10 +14,13 @@
 
 package com.hughes.android.dictionary.engine;
 
+import com.hughes.android.util.BufferListSerializer;
+import com.hughes.android.util.DataInputBuffer;
 import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -28,7 +31,7 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
 
     final String text;
 
-    public TextEntry(final Dictionary dictionary, final RandomAccessFile raf, final int index)
+    public TextEntry(final Dictionary dictionary, final DataInput raf, final int index)
             throws IOException {
         super(dictionary, raf, index);
         text = raf.readUTF();
@@ -41,7 +44,8 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
         raf.writeUTF(text);
     }
 
-    static final class Serializer implements RAFListSerializer<TextEntry> {
+    static final class Serializer implements RAFListSerializer<TextEntry>,
+            BufferListSerializer<TextEntry> {
 
         final Dictionary dictionary;
 
@@ -54,6 +58,11 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
             return new TextEntry(dictionary, raf, index);
         }
 
+        @Override
+        public TextEntry read(DataInputBuffer in, final int index) throws IOException {
+            return new TextEntry(dictionary, in, index);
+        }
+
         @Override
         public void write(RandomAccessFile raf, TextEntry t) throws IOException {
             t.write(raf);
@@ -74,11 +83,16 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
 
     public static class Row extends RowBase {
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput raf, final int thisRowIndex,
                 final Index index) throws IOException {
             super(raf, thisRowIndex, index);
         }
 
+        Row(final int referenceIndex, final int thisRowIndex,
+                final Index index) {
+            super(referenceIndex, thisRowIndex, index);
+        }
+
         public TextEntry getEntry() {
             return index.dict.textEntries.get(referenceIndex);
         }
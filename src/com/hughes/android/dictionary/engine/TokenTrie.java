@@ -0,0 +1,255 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The normalized tokens of an Index's main entries as a trie, for completing
+ * what's being typed. The nodes are in pre-order in parallel arrays: a node's
+ * first child comes right after it, and its subtree ends where its next
+ * sibling starts. Each node knows the most rows of any token under it, so the
+ * best completions are found best-first without walking the whole subtree.
+ */
+final class TokenTrie {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Per node: the char leading to it, where its subtree ends, the most rows
+    // of a token in its subtree, and its first token. Tokens are in normalized
+    // order, so a node's own tokens run up to the next node's first.
+    private final char[] labels;
+    private final int[] subtreeEnds;
+    private final int[] maxNumRows;
+    private final int[] firstTokens;
+
+    // Per token.
+    private final String[] tokens;
+    private final int[] indexEntryIndices;
+    private final int[] numRows;
+
+    private TokenTrie(final Builder builder) {
+        final int size = builder.size;
+        labels = Arrays.copyOf(builder.labels, size);
+        subtreeEnds = Arrays.copyOf(builder.subtreeEnds, size);
+        maxNumRows = Arrays.copyOf(builder.maxNumRows, size);
+        firstTokens = Arrays.copyOf(builder.firstTokens, size + 1);
+        firstTokens[size] = builder.tokens.length;
+        tokens = builder.tokens;
+        indexEntryIndices = builder.indexEntryIndices;
+        numRows = builder.numRows;
+    }
+
+    /**
+     * @return the main-entry tokens of index, reading all of its
+     *         sortedIndexEntries once.
+     */
+    static TokenTrie build(final Index index) {
+        final List<String> normalized = new ArrayList<String>();
+        final List<String> tokens = new ArrayList<String>();
+        final List<Integer> indexEntryIndices = new ArrayList<Integer>();
+        final List<Integer> numRows = new ArrayList<Integer>();
+        for (int i = 0; i < index.sortedIndexEntries.size(); ++i) {
+            final IndexEntry indexEntry = index.sortedIndexEntries.get(i);
+            if (hasMainEntry(index, indexEntry)) {
+                normalized.add(indexEntry.normalizedToken());
+                tokens.add(indexEntry.token);
+                indexEntryIndices.add(i);
+                numRows.add(indexEntry.numRows);
+            }
+        }
+
+        // The Index is in collation order; the trie needs char order. The sort
+        // is stable, so equal normalizedTokens stay in index order.
+        final Integer[] order = new Integer[normalized.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return normalized.get(a).compareTo(normalized.get(b));
+            }
+        });
+
+        final Builder builder = new Builder(order.length);
+        for (final int i : order) {
+            builder.add(normalized.get(i), tokens.get(i), indexEntryIndices.get(i),
+                    numRows.get(i));
+        }
+        return builder.finish();
+    }
+
+    private static boolean hasMainEntry(final Index index, final IndexEntry indexEntry) {
+        if (index.rowTable != null) {
+            return index.rowTable.getType(indexEntry.startRow) == RowTable.TYPE_TOKEN;
+        }
+        final RowBase row = index.rows.get(indexEntry.startRow);
+        return row instanceof TokenRow && ((TokenRow) row).hasMainEntry;
+    }
+
+    private static final class Builder {
+        char[] labels = new char[INITIAL_CAPACITY];
+        int[] subtreeEnds = new int[INITIAL_CAPACITY];
+        int[] maxNumRows = new int[INITIAL_CAPACITY];
+        int[] firstTokens = new int[INITIAL_CAPACITY + 1];
+        int size = 0;
+
+        final String[] tokens;
+        final int[] indexEntryIndices;
+        final int[] numRows;
+        int tokenCount = 0;
+
+        // The nodes from the root to the last token added.
+        int[] path = new int[16];
+        int depth = 0;
+        String previous = "";
+
+        Builder(final int tokenCount) {
+            tokens = new String[tokenCount];
+            indexEntryIndices = new int[tokenCount];
+            numRows = new int[tokenCount];
+            path[0] = newNode('\0');
+        }
+
+        /**
+         * Tokens must be added in order of normalizedToken.
+         */
+        void add(final String normalizedToken, final String token, final int indexEntryIndex,
+                final int rows) {
+            int common = 0;
+            final int max = Math.min(previous.length(), normalizedToken.length());
+            while (common < max && previous.charAt(common) == normalizedToken.charAt(common)) {
+                ++common;
+            }
+            while (depth > common) {
+                closeNode();
+            }
+            while (depth < normalizedToken.length()) {
+                final int node = newNode(normalizedToken.charAt(depth));
+                ++depth;
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, 2 * path.length);
+                }
+                path[depth] = node;
+            }
+            tokens[tokenCount] = token;
+            indexEntryIndices[tokenCount] = indexEntryIndex;
+            numRows[tokenCount] = rows;
+            ++tokenCount;
+            final int node = path[depth];
+            maxNumRows[node] = Math.max(maxNumRows[node], rows);
+            previous = normalizedToken;
+        }
+
+        TokenTrie finish() {
+            while (depth > 0) {
+                closeNode();
+            }
+            subtreeEnds[0] = size;
+            return new TokenTrie(this);
+        }
+
+        private int newNode(final char label) {
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, 2 * size);
+                subtreeEnds = Arrays.copyOf(subtreeEnds, 2 * size);
+                maxNumRows = Arrays.copyOf(maxNumRows, 2 * size);
+                firstTokens = Arrays.copyOf(firstTokens, 2 * size + 1);
+            }
+            labels[size] = label;
+            firstTokens[size] = tokenCount;
+            return size++;
+        }
+
+        private void closeNode() {
+            final int node = path[depth];
+            final int parent = path[--depth];
+            subtreeEnds[node] = size;
+            maxNumRows[parent] = Math.max(maxNumRows[parent], maxNumRows[node]);
+        }
+    }
+
+    /**
+     * A subtree or a single token waiting to be looked at. Its key is at least
+     * that of every token it stands for: the most rows, then the first token.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        final long key;
+        final int node;
+        final int token;
+
+        Candidate(final int rows, final int firstToken, final int node, final int token) {
+            this.key = ((long) rows << 32) | (Integer.MAX_VALUE - firstToken);
+            this.node = node;
+            this.token = token;
+        }
+
+        @Override
+        public int compareTo(final Candidate that) {
+            // Biggest key first.
+            return key < that.key ? 1 : key > that.key ? -1 : 0;
+        }
+    }
+
+    /**
+     * @return up to maxResults tokens starting with normalizedPrefix, most
+     *         rows first, then in normalized order.
+     */
+    List<Index.Completion> complete(final String normalizedPrefix, final int maxResults) {
+        int node = 0;
+        for (int i = 0; i < normalizedPrefix.length(); ++i) {
+            final char c = normalizedPrefix.charAt(i);
+            int child = node + 1;
+            while (child < subtreeEnds[node] && labels[child] != c) {
+                child = subtreeEnds[child];
+            }
+            if (child >= subtreeEnds[node]) {
+                return Collections.emptyList();
+            }
+            node = child;
+        }
+
+        final List<Index.Completion> result = new ArrayList<Index.Completion>(Math.min(
+                maxResults, 16));
+        final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        queue.add(new Candidate(maxNumRows[node], firstTokens[node], node, -1));
+        while (result.size() < maxResults && !queue.isEmpty()) {
+            final Candidate candidate = queue.poll();
+            if (candidate.token != -1) {
+                final int token = candidate.token;
+                result.add(new Index.Completion(tokens[token], indexEntryIndices[token],
+                        numRows[token]));
+                continue;
+            }
+            final int expand = candidate.node;
+            for (int token = firstTokens[expand]; token < firstTokens[expand + 1]; ++token) {
+                queue.add(new Candidate(numRows[token], token, -1, token));
+            }
+            for (int child = expand + 1; child < subtreeEnds[expand]; child = subtreeEnds[child]) {
+                queue.add(new Candidate(maxNumRows[child], firstTokens[child], child, -1));
+            }
+        }
+        return result;
+    }
+
+}
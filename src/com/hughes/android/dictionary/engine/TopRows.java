@@ -0,0 +1,132 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The best maxSize rows of a search, ordered by RowMatchType, then side
+ * length, then the order they were added in. That's the order that sorting
+ * each RowMatchType with RowBase.LengthComparator gives.
+ * <p>
+ * Each row's sort key is computed once and packed into a long. The rows are
+ * kept in a max-heap on those keys, so a row that doesn't make the cut costs
+ * one comparison.
+ */
+final class TopRows {
+
+    private static final int ORDER_BITS = 20;
+    private static final int LENGTH_BITS = 40;
+    private static final long ORDER_MASK = (1L << ORDER_BITS) - 1;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxSize;
+    private long[] keys;
+    private RowBase[] rows;
+    private int size;
+    private int added;
+
+    TopRows(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize=" + maxSize);
+        }
+        this.maxSize = maxSize;
+        final int capacity = Math.min(maxSize, INITIAL_CAPACITY);
+        keys = new long[capacity];
+        rows = new RowBase[capacity];
+    }
+
+    void add(final RowMatchType matchType, final RowBase row, final int sideLength) {
+        final long key = ((long) matchType.ordinal() << (LENGTH_BITS + ORDER_BITS))
+                | (Math.min(sideLength, LENGTH_MASK) << ORDER_BITS)
+                | Math.min(added++, ORDER_MASK);
+        if (size < maxSize) {
+            if (size == keys.length) {
+                final int capacity = (int) Math.min(maxSize, 2L * size);
+                keys = Arrays.copyOf(keys, capacity);
+                rows = Arrays.copyOf(rows, capacity);
+            }
+            keys[size] = key;
+            rows[size] = row;
+            siftUp(size++);
+        } else if (size > 0 && key < keys[0]) {
+            keys[0] = key;
+            rows[0] = row;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * @return the rows kept, best first. Empties this.
+     */
+    List<RowBase> removeAll() {
+        // Heapsort: move the worst to the end until the heap is gone.
+        for (int end = size - 1; end > 0; --end) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        final List<RowBase> result = new ArrayList<RowBase>(size);
+        for (int i = 0; i < size; ++i) {
+            result.add(rows[i]);
+            rows[i] = null;
+        }
+        size = 0;
+        return result;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (keys[parent] >= keys[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, final int end) {
+        while (true) {
+            int largest = i;
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            if (left < end && keys[left] > keys[largest]) {
+                largest = left;
+            }
+            if (right < end && keys[right] > keys[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final RowBase row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+    }
+
+}
@@ -0,0 +1,131 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Reads a list in the layout written by RAFList (an int size, then size + 1
+ * absolute long offsets, then the elements) from a {@link ByteSource}.
+ * Elements are decoded on every get(), so wrap it in a CachingList as you
+ * would a RAFList. Unlike RAFList, get() doesn't lock anything.
+ */
+public final class BufferList<T> extends AbstractList<T> implements RandomAccess {
+
+    /** Writes one element for {@link BufferList#write(RandomAccessFile, List, Writer)}. */
+    public interface Writer<T> {
+        void write(RandomAccessFile raf, T t) throws IOException;
+    }
+
+    private final ByteSource source;
+    private final BufferListSerializer<T> serializer;
+    private final int size;
+    private final long tocOffset;
+    private final long endOffset;
+
+    private BufferList(final DataInputBuffer in, final BufferListSerializer<T> serializer)
+            throws IOException {
+        this.source = in.getSource();
+        this.serializer = serializer;
+        size = in.readInt();
+        tocOffset = in.getFilePointer();
+        in.seek(tocOffset + size * 8L);
+        endOffset = in.readLong();
+    }
+
+    /**
+     * Creates a list starting at the current position of in, and leaves in
+     * positioned just past the end of the list.
+     */
+    public static <T> BufferList<T> create(final DataInputBuffer in,
+            final BufferListSerializer<T> serializer) throws IOException {
+        final BufferList<T> result = new BufferList<T>(in, serializer);
+        in.seek(result.endOffset);
+        return result;
+    }
+
+    /**
+     * Writes elements that are already encoded at the file pointer of raf, in
+     * the layout create() reads, and leaves raf just past them.
+     */
+    public static void write(final RandomAccessFile raf, final List<byte[]> elements)
+            throws IOException {
+        final ByteBuffer toc = ByteBuffer.allocate(4 + 8 * (elements.size() + 1));
+        toc.putInt(elements.size());
+        long offset = raf.getFilePointer() + toc.capacity();
+        for (final byte[] element : elements) {
+            toc.putLong(offset);
+            offset += element.length;
+        }
+        toc.putLong(offset);
+        raf.write(toc.array());
+        for (final byte[] element : elements) {
+            raf.write(element);
+        }
+    }
+
+    /**
+     * Writes elements that need the file pointer of raf while they're written
+     * (e.g. because they hold lists of their own), in the layout create()
+     * reads, and leaves raf just past them.
+     */
+    public static <T> void write(final RandomAccessFile raf, final List<T> elements,
+            final Writer<T> writer) throws IOException {
+        raf.writeInt(elements.size());
+        final long tocOffset = raf.getFilePointer();
+        final long[] offsets = new long[elements.size() + 1];
+        raf.seek(tocOffset + 8L * offsets.length);
+        for (int i = 0; i < elements.size(); ++i) {
+            offsets[i] = raf.getFilePointer();
+            writer.write(raf, elements.get(i));
+        }
+        offsets[elements.size()] = raf.getFilePointer();
+        final ByteBuffer toc = ByteBuffer.allocate(8 * offsets.length);
+        for (final long offset : offsets) {
+            toc.putLong(offset);
+        }
+        raf.seek(tocOffset);
+        raf.write(toc.array());
+        raf.seek(offsets[elements.size()]);
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public T get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("BufferList: i=" + i + ", size=" + size);
+        }
+        try {
+            final long start = source.readLong(tocOffset + i * 8L);
+            return serializer.read(new DataInputBuffer(source, start), i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the bytes of a file by absolute position, with no shared
+ * file pointer: any number of threads can read at once without locking.
+ */
+public abstract class ByteSource {
+
+    public abstract long length();
+
+    public abstract long readLong(long position) throws IOException;
+
+    /**
+     * @return a buffer holding exactly the length bytes at position. It may be
+     *         a view of shared memory, so callers must not write to it.
+     */
+    public abstract ByteBuffer read(long position, int length) throws IOException;
+
+    // --------------------------------------------------------------------
+
+    /**
+     * Reads out of a ByteBuffer holding the whole file, typically a read-only
+     * mapping.
+     */
+    public static final class Mapped extends ByteSource {
+
+        private final ByteBuffer buffer;
+
+        public Mapped(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public long readLong(final long position) {
+            return buffer.getLong((int) position);
+        }
+
+        @Override
+        public ByteBuffer read(final long position, final int length) throws IOException {
+            if (position < 0 || position + length > buffer.limit()) {
+                throw new EOFException("Wanted " + length + " bytes at " + position
+                        + ", length=" + buffer.limit());
+            }
+            final ByteBuffer result = buffer.duplicate();
+            result.limit((int) position + length);
+            result.position((int) position);
+            return result.slice();
+        }
+    }
+
+    /**
+     * Reads with FileChannel.read(ByteBuffer, long), which doesn't touch the
+     * channel's position.
+     * <p>
+     * Interrupting a thread blocked in a read closes the channel for every
+     * thread. A Channel made from a File owns its channel, so it reopens it
+     * and the other threads carry on; the interrupted one gets its
+     * ClosedByInterruptException. A Channel made from a FileChannel belongs
+     * to whoever opened that, and stays closed. That's why tasks that may be
+     * reading get cancelled with Future.cancel(false), and left to notice on
+     * their own that they should stop.
+     */
+    public static final class Channel extends ByteSource {
+
+        // Null if the channel isn't ours to reopen.
+        private final File file;
+        private final long length;
+        private volatile FileChannel channel;
+        private volatile boolean closed = false;
+
+        public Channel(final FileChannel channel) throws IOException {
+            this.file = null;
+            this.channel = channel;
+            this.length = channel.size();
+        }
+
+        /**
+         * Opens file for reading until {@link #close()}.
+         */
+        public Channel(final File file) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+            this.length = channel.size();
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long readLong(final long position) throws IOException {
+            return read(position, 8).getLong();
+        }
+
+        @Override
+        public ByteBuffer read(final long position, final int length) throws IOException {
+            final ByteBuffer result = ByteBuffer.allocate(length);
+            while (result.hasRemaining()) {
+                final FileChannel current = channel;
+                final int read;
+                try {
+                    read = current.read(result, position + result.position());
+                } catch (ClosedChannelException e) {
+                    // Also what ClosedByInterruptException and
+                    // AsynchronousCloseException are. An interrupted thread
+                    // would only close a reopened channel again.
+                    if (file == null || closed || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    reopen(current);
+                    continue;
+                }
+                if (read < 0) {
+                    throw new EOFException("Wanted " + length + " bytes at " + position
+                            + ", length=" + this.length);
+                }
+            }
+            result.flip();
+            return result;
+        }
+
+        private synchronized void reopen(final FileChannel closedChannel) throws IOException {
+            if (channel == closedChannel && !closed) {
+                channel = new RandomAccessFile(file, "r").getChannel();
+            }
+        }
+
+        /**
+         * Closes the channel, for good if it was opened from a File.
+         */
+        public synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+        }
+    }
+
+}
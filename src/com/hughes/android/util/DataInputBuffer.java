@@ -0,0 +1,187 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataInput over a {@link ByteSource} with its own position, so that many
+ * DataInputBuffers can decode the same file from different threads without
+ * locking. Bytes are fetched from the source a window at a time.
+ */
+public final class DataInputBuffer implements DataInput {
+
+    static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ByteSource source;
+    private final int windowSize;
+
+    private long windowStart;
+    private ByteBuffer window = EMPTY;
+
+    /**
+     * @param windowSize how many bytes to fetch at a time; typically the
+     *            expected size of what's being decoded.
+     */
+    public DataInputBuffer(final ByteSource source, final long position, final int windowSize) {
+        this.source = source;
+        this.windowSize = windowSize;
+        this.windowStart = position;
+    }
+
+    public DataInputBuffer(final ByteSource source, final long position) {
+        this(source, position, DEFAULT_WINDOW_SIZE);
+    }
+
+    public ByteSource getSource() {
+        return source;
+    }
+
+    public long getFilePointer() {
+        return windowStart + window.position();
+    }
+
+    public void seek(final long position) {
+        if (position >= windowStart && position <= windowStart + window.limit()) {
+            window.position((int) (position - windowStart));
+        } else {
+            windowStart = position;
+            window = EMPTY;
+        }
+    }
+
+    private ByteBuffer ensure(final int length) throws IOException {
+        if (window.remaining() < length) {
+            final long position = getFilePointer();
+            final long available = source.length() - position;
+            if (available < length) {
+                throw new EOFException("Wanted " + length + " bytes at " + position
+                        + ", only " + available + " remaining.");
+            }
+            windowStart = position;
+            window = source.read(position, (int) Math.min(available,
+                    Math.max(length, windowSize)));
+        }
+        return window;
+    }
+
+    @Override
+    public void readFully(final byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(final byte[] b, final int off, final int len) throws IOException {
+        ensure(len).get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(final int n) {
+        seek(getFilePointer() + n);
+        return n;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return ensure(1).get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return ensure(2).getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return ensure(2).getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return ensure(4).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return ensure(8).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return ensure(4).getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return ensure(8).getDouble();
+    }
+
+    /**
+     * Like RandomAccessFile.readLine: each byte is one char, and a line ends
+     * with "\n", "\r", "\r\n" or the end of the source.
+     *
+     * @return null if already at the end of the source.
+     */
+    @Override
+    public String readLine() throws IOException {
+        final long length = source.length();
+        if (getFilePointer() >= length) {
+            return null;
+        }
+        final StringBuilder line = new StringBuilder();
+        while (getFilePointer() < length) {
+            final int c = readUnsignedByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                final long next = getFilePointer();
+                if (next < length && readUnsignedByte() != '\n') {
+                    seek(next);
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+}
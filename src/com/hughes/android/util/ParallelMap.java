@@ -0,0 +1,111 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a function to every element of a list, in chunks on an
+ * ExecutorService, and returns the results in the original order.
+ */
+public final class ParallelMap {
+
+    public interface Function<F, T> {
+        T apply(F from) throws IOException;
+    }
+
+    private ParallelMap() {
+    }
+
+    /**
+     * @param executor where to run the chunks, or null to run everything on
+     *            the calling thread.
+     */
+    public static <F, T> List<T> map(final ExecutorService executor, final List<F> inputs,
+            final Function<F, T> function, final int chunkSize) throws IOException {
+        if (executor == null || inputs.size() <= chunkSize) {
+            return apply(inputs, function);
+        }
+        final List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+        for (int start = 0; start < inputs.size(); start += chunkSize) {
+            final List<F> chunk = inputs.subList(start, Math.min(inputs.size(), start
+                    + chunkSize));
+            futures.add(executor.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws IOException {
+                    return apply(chunk, function);
+                }
+            }));
+        }
+        final List<T> result = new ArrayList<T>(inputs.size());
+        try {
+            for (final Future<List<T>> future : futures) {
+                result.addAll(getResult(future));
+            }
+        } finally {
+            // Nothing is left to wait for unless something failed. Not
+            // cancel(true): see ByteSource.Channel.
+            for (final Future<List<T>> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Future.get(), rethrowing what the task threw.
+     */
+    public static <T> T getResult(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException ioe = new InterruptedIOException();
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static <F, T> List<T> apply(final List<F> inputs, final Function<F, T> function)
+            throws IOException {
+        if (inputs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<T> result = new ArrayList<T>(inputs.size());
+        for (final F input : inputs) {
+            result.add(function.apply(input));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,84 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with no zlib or gzip framing, for small chunks whose length is
+ * stored elsewhere. Optionally primed with a preset dictionary.
+ */
+public final class RawDeflate {
+
+    private RawDeflate() {
+    }
+
+    /**
+     * @param presetDictionary bytes that bytes is likely to share, or null.
+     */
+    public static byte[] compress(final byte[] bytes, final byte[] presetDictionary) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            if (presetDictionary != null) {
+                deflater.setDictionary(presetDictionary);
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                result.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Fills all of bytes from zipBytes, which must have been compressed with
+     * the same presetDictionary.
+     */
+    public static void decompress(final byte[] zipBytes, final byte[] bytes,
+            final byte[] presetDictionary) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (presetDictionary != null) {
+                inflater.setDictionary(presetDictionary);
+            }
+            inflater.setInput(zipBytes);
+            int numBytes = 0;
+            while (numBytes < bytes.length) {
+                final int count = inflater.inflate(bytes, numBytes, bytes.length - numBytes);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated data: got " + numBytes + " of "
+                            + bytes.length + " bytes.");
+                }
+                numBytes += count;
+            }
+        } catch (DataFormatException e) {
+            final IOException ioe = new IOException("Corrupt data");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
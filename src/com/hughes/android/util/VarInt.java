@@ -0,0 +1,62 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable-length ints: 7 bits per byte, low bits first, high bit set on all
+ * but the last byte. Small non-negative values take a single byte.
+ */
+public final class VarInt {
+
+    private VarInt() {
+    }
+
+    public static void write(final DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int read(final DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Zig-zag encodes value so that small negative numbers stay small.
+     */
+    public static void writeSigned(final DataOutput out, final int value) throws IOException {
+        write(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static int readSigned(final DataInput in) throws IOException {
+        final int value = read(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}